@@ -0,0 +1,106 @@
+package com.thin.downloadmanager;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of transfer buffers shared by all the dispatchers of a {@link DownloadRequestQueue},
+ * so the steady state download path doesn't allocate a buffer per download.
+ * Heap and direct buffers are kept apart, each kind with its own cap, since a channel transfer
+ * borrows both kinds. Buffers left over from a previous buffer size are dropped.
+ */
+class BufferPool {
+
+    /** Idle heap buffers ready to be borrowed. */
+    private final ArrayDeque<ByteBuffer> mHeapBuffers = new ArrayDeque<>();
+
+    /** Idle direct buffers ready to be borrowed. */
+    private final ArrayDeque<ByteBuffer> mDirectBuffers = new ArrayDeque<>();
+
+    /** Maximum number of idle buffers kept around, per kind. */
+    private int mMaxBuffers;
+
+    /** Capacity of the buffers handed out. */
+    private int mBufferSize;
+
+    private final AtomicLong mHits = new AtomicLong();
+
+    private final AtomicLong mMisses = new AtomicLong();
+
+    BufferPool(int maxBuffers, int bufferSize) {
+        mMaxBuffers = maxBuffers;
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Borrows a cleared buffer, allocating one when no matching idle buffer is available.
+     *
+     * @param direct - true for a direct buffer, false for a heap buffer backed by an array
+     */
+    ByteBuffer acquire(boolean direct) {
+        int bufferSize;
+        synchronized (this) {
+            bufferSize = mBufferSize;
+            ByteBuffer buffer = getBuffers(direct).poll();
+            if (buffer != null) {
+                mHits.incrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        mMisses.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Returns a borrowed buffer, it is dropped if the pool is already full.
+     */
+    synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != mBufferSize) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> buffers = getBuffers(buffer.isDirect());
+        if (buffers.size() < mMaxBuffers) {
+            buffers.push(buffer);
+        }
+    }
+
+    synchronized void setBufferSize(int bufferSize) {
+        if (mBufferSize != bufferSize) {
+            mBufferSize = bufferSize;
+            mHeapBuffers.clear();
+            mDirectBuffers.clear();
+        }
+    }
+
+    synchronized int getBufferSize() {
+        return mBufferSize;
+    }
+
+    synchronized void setMaxBuffers(int maxBuffers) {
+        mMaxBuffers = maxBuffers;
+        while (mHeapBuffers.size() > maxBuffers) {
+            mHeapBuffers.pop();
+        }
+        while (mDirectBuffers.size() > maxBuffers) {
+            mDirectBuffers.pop();
+        }
+    }
+
+    synchronized int getMaxBuffers() {
+        return mMaxBuffers;
+    }
+
+    private ArrayDeque<ByteBuffer> getBuffers(boolean direct) {
+        return direct ? mDirectBuffers : mHeapBuffers;
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+}
@@ -0,0 +1,72 @@
+package com.thin.downloadmanager;
+
+import com.thin.downloadmanager.util.Log;
+
+/**
+ * Adjusts how many downloads may run at once from the measured throughput, AIMD style. Each sample
+ * compares the bytes per second of all the downloads with the previous sample: a clear gain adds
+ * one download, a clear loss cuts the limit by a quarter, anything in between keeps it. Samples
+ * taken while fewer downloads than allowed were running say nothing about the limit and are skipped.
+ */
+class ConcurrencyController implements Runnable {
+
+    /** Throughput gain over the previous sample that lets the limit grow. */
+    private static final double INCREASE_THRESHOLD = 1.1;
+
+    /** Throughput loss from the previous sample that makes the limit shrink. */
+    private static final double DECREASE_THRESHOLD = 0.8;
+
+    private static final double DECREASE_FACTOR = 0.75;
+
+    private final DownloadRequestQueue mRequestQueue;
+    private final DownloadScheduler mScheduler;
+    private final int mMinConcurrency;
+    private final int mMaxConcurrency;
+
+    private long mLastBytes;
+    private long mLastNanos;
+    private double mLastThroughput = -1;
+
+    ConcurrencyController(DownloadRequestQueue requestQueue, DownloadScheduler scheduler,
+                          int minConcurrency, int maxConcurrency) {
+        mRequestQueue = requestQueue;
+        mScheduler = scheduler;
+        mMinConcurrency = minConcurrency;
+        mMaxConcurrency = maxConcurrency;
+        mLastBytes = requestQueue.getTransferredBytes();
+        mLastNanos = System.nanoTime();
+        mScheduler.setMaxActive(minConcurrency);
+    }
+
+    @Override
+    public void run() {
+        long bytes = mRequestQueue.getTransferredBytes();
+        long now = System.nanoTime();
+        double throughput = (bytes - mLastBytes) * 1000000000.0 / Math.max(1, now - mLastNanos);
+        mLastBytes = bytes;
+        mLastNanos = now;
+
+        int limit = mScheduler.getMaxActive();
+        if (mScheduler.getActive() < limit) {
+            // Not enough work to fill the limit, the sample can't tell whether it is right.
+            mLastThroughput = -1;
+            return;
+        }
+        if (mLastThroughput >= 0) {
+            int newLimit = limit;
+            if (throughput > mLastThroughput * INCREASE_THRESHOLD) {
+                newLimit = Math.min(mMaxConcurrency, limit + 1);
+            } else if (throughput < mLastThroughput * DECREASE_THRESHOLD) {
+                newLimit = Math.max(mMinConcurrency, (int) (limit * DECREASE_FACTOR));
+            }
+            if (newLimit != limit) {
+                Log.v("Concurrency limit " + limit + " -> " + newLimit + " at " + (long) throughput + " bytes/s");
+                mScheduler.setMaxActive(newLimit);
+            }
+        } else if (limit < mMaxConcurrency) {
+            // First full sample, probe upwards.
+            mScheduler.setMaxActive(limit + 1);
+        }
+        mLastThroughput = throughput;
+    }
+}
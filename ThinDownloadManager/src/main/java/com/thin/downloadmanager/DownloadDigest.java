@@ -0,0 +1,118 @@
+package com.thin.downloadmanager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Running checksum of the bytes of a download, updated while they are written. It remembers how
+ * many bytes it covers so a resume at the same offset can carry on without reading the file again.
+ */
+class DownloadDigest {
+
+    private final DownloadRequest.ChecksumType mType;
+    private final MessageDigest mMessageDigest;
+    private final CRC32 mCrc32;
+    private byte[] mScratch;
+
+    /** Number of bytes covered by the checksum. */
+    private long mLength;
+
+    DownloadDigest(DownloadRequest.ChecksumType type) {
+        mType = type;
+        if (type == DownloadRequest.ChecksumType.CRC32) {
+            mCrc32 = new CRC32();
+            mMessageDigest = null;
+        } else {
+            mCrc32 = null;
+            try {
+                mMessageDigest = MessageDigest.getInstance(type.getAlgorithm());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(type.getAlgorithm() + " not supported on this device", e);
+            }
+        }
+    }
+
+    /**
+     * Builds the checksum of the first bytes of an existing file, used when a download resumes
+     * without a running checksum for its offset.
+     */
+    static DownloadDigest of(DownloadRequest.ChecksumType type, File file, long length, byte[] buffer) throws IOException {
+        DownloadDigest digest = new DownloadDigest(type);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException("File shorter than the expected " + length + " bytes");
+                }
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+        return digest;
+    }
+
+    DownloadRequest.ChecksumType getType() {
+        return mType;
+    }
+
+    long getLength() {
+        return mLength;
+    }
+
+    void update(byte[] data, int offset, int length) {
+        if (mCrc32 != null) {
+            mCrc32.update(data, offset, length);
+        } else {
+            mMessageDigest.update(data, offset, length);
+        }
+        mLength += length;
+    }
+
+    /**
+     * Consumes the remaining bytes of the buffer.
+     */
+    void update(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (mCrc32 == null) {
+            mMessageDigest.update(buffer);
+        } else if (buffer.hasArray()) {
+            mCrc32.update(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.limit());
+        } else {
+            if (mScratch == null) {
+                mScratch = new byte[4096];
+            }
+            while (buffer.hasRemaining()) {
+                int chunk = Math.min(mScratch.length, buffer.remaining());
+                buffer.get(mScratch, 0, chunk);
+                mCrc32.update(mScratch, 0, chunk);
+            }
+        }
+        mLength += length;
+    }
+
+    /**
+     * Returns the lower case hex checksum. Finishes a message digest, so it is called once.
+     */
+    String toHex() {
+        if (mCrc32 != null) {
+            return String.format(Locale.US, "%08x", mCrc32.getValue());
+        }
+        byte[] digest = mMessageDigest.digest();
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -1,25 +1,39 @@
 package com.thin.downloadmanager;
 
+import android.annotation.TargetApi;
+import android.os.Build;
 import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 
 import com.thin.downloadmanager.util.Log;
 
 import org.apache.http.conn.ConnectTimeoutException;
 
-import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static android.content.ContentValues.TAG;
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
@@ -31,32 +45,49 @@ import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
 import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 
 /**
- * This thread/class used to make {@link HttpURLConnection}, receives Response from server
- * and Dispatch the response to respective {@link DownloadRequest}
+ * This thread/class used to make requests through the {@link HttpStack}, receives Response from server
+ * and Dispatch the response to respective {@link DownloadRequest}. It runs either on a thread of its
+ * own or as a long running task of the executor given to the {@link DownloadRequestQueue}.
  *
  * @author Mani Selvaraj
  * @author Praveen Kumar
  */
-class DownloadDispatcher extends Thread {
+class DownloadDispatcher implements Runnable {
 
     /**
      * The queue of download requests to service.
      */
-    private final BlockingQueue<DownloadRequest> mQueue;
+    private final DownloadScheduler mQueue;
     /**
-     * The buffer size used to stream the data
+     * The queue this dispatcher belongs to, holds the transfer settings.
      */
-    private final int BUFFER_SIZE = 4096;
+    private final DownloadRequestQueue mRequestQueue;
     /**
      * The maximum number of redirects.
      */
     private final int MAX_REDIRECTS = 5; // can't be more than 7.
     private final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
     private final int HTTP_TEMP_REDIRECT = 307;
+    /**
+     * Longest sleep between cancellation checks while throttled.
+     */
+    private final long THROTTLE_SLICE_MS = 100;
+    /**
+     * Handed to a {@link WriteStage} after the last filled buffer.
+     */
+    private static final ByteBuffer PIPELINE_END = ByteBuffer.allocate(0);
     /**
      * Used to tell the dispatcher to die.
      */
     private volatile boolean mQuit = false;
+    /**
+     * The thread running this dispatcher, interrupted to make it quit.
+     */
+    private volatile Thread mThread;
+    /**
+     * Whether the thread was created for this dispatcher, a borrowed executor thread keeps its priority.
+     */
+    private final boolean mOwnThread;
     /**
      * To Delivery call back response on main thread
      */
@@ -67,6 +98,11 @@ class DownloadDispatcher extends Thread {
     private int mRedirectionCount = 0;
     private long mContentLength;
     private boolean shouldAllowRedirects = true;
+    /**
+     * Whether the current request already started over because its resource changed while the
+     * segments were downloading.
+     */
+    private boolean mSegmentsRestarted = false;
 
     /**
      * This variable is part of resumable download feature.
@@ -75,30 +111,57 @@ class DownloadDispatcher extends Thread {
      */
     private long mDownloadedCacheSize = 0;
 
-    private Timer mTimer;
+    /**
+     * Whether the scheduler slot of the current request was already freed, before a retry handed
+     * the request back to the queue.
+     */
+    private boolean mSlotReleased = false;
+
+    /**
+     * Whether the destination of the current transfer was extended to the content length up front,
+     * so it has to be cut back to the written bytes if the transfer stops early.
+     */
+    private boolean mPreallocated = false;
 
     /**
      * Constructor take the dependency (DownloadRequest queue) that all the Dispatcher needs
      */
-    DownloadDispatcher(BlockingQueue<DownloadRequest> queue,
-                       DownloadRequestQueue.CallBackDelivery delivery) {
+    DownloadDispatcher(DownloadScheduler queue,
+                       DownloadRequestQueue.CallBackDelivery delivery,
+                       DownloadRequestQueue requestQueue,
+                       boolean ownThread) {
         mQueue = queue;
         mDelivery = delivery;
+        mRequestQueue = requestQueue;
+        mOwnThread = ownThread;
     }
 
     @Override
     public void run() {
-        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        mTimer = new Timer();
+        mThread = Thread.currentThread();
+        if (mQuit) {
+            // Released before the executor got to run this dispatcher.
+            return;
+        }
+        if (mOwnThread) {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        }
         while (true) {
             DownloadRequest request = null;
             try {
                 request = mQueue.take();
-                mRedirectionCount = 0;
-                shouldAllowRedirects = true;
-                Log.v("Download initiated for " + request.getDownloadId());
-                updateDownloadState(request, DownloadManager.STATUS_STARTED);
-                executeDownload(request, request.getUri().toString());
+                mSlotReleased = false;
+                try {
+                    mRedirectionCount = 0;
+                    shouldAllowRedirects = true;
+                    mSegmentsRestarted = false;
+                    mDownloadedCacheSize = 0;
+                    Log.v("Download initiated for " + request.getDownloadId());
+                    updateDownloadState(request, DownloadManager.STATUS_STARTED);
+                    executeDownload(request, request.getUri().toString());
+                } finally {
+                    releaseSlot(request);
+                }
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) {
@@ -109,16 +172,29 @@ class DownloadDispatcher extends Thread {
                             updateDownloadFailed(request, DownloadManager.ERROR_DOWNLOAD_CANCELLED, "Download cancelled");
                         }
                     }
-                    mTimer.cancel();
                     return;
                 }
             }
         }
     }
 
+    /**
+     * Hands the scheduler slot of the request back once. A retry frees it before the request is
+     * re-queued, as the retry may be taken again before this dispatcher is done with it.
+     */
+    private void releaseSlot(DownloadRequest request) {
+        if (!mSlotReleased) {
+            mSlotReleased = true;
+            mQueue.finish(request);
+        }
+    }
+
     void quit() {
         mQuit = true;
-        interrupt();
+        Thread thread = mThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
     }
 
 
@@ -131,33 +207,35 @@ class DownloadDispatcher extends Thread {
             return;
         }
 
-        HttpURLConnection conn = null;
+        HttpStack.Response response = null;
 
         try {
-            conn = (HttpURLConnection) url.openConnection();
-            File destinationFile = new File(request.getDestinationURI().getPath());
-            if (destinationFile.exists()) {
-                mDownloadedCacheSize = (int) destinationFile.length();
+            if (!request.hasDestinationSink()) {
+                File destinationFile = new File(request.getDestinationURI().getPath());
+                if (request.getResumeOffset() > 0 && destinationFile.length() >= request.getResumeOffset()) {
+                    // Reconnecting after the previous response broke off.
+                    mDownloadedCacheSize = request.getResumeOffset();
+                } else if (request.isResumable() && destinationFile.exists()) {
+                    mDownloadedCacheSize = getCommittedLength(request, destinationFile);
+                }
+            }
+            String ifRange = null;
+            if (mDownloadedCacheSize > 0) {
+                // Only get the remaining bytes if the resource is still the one the partial file came from.
+                ResumeMetadata.load(request);
+                ifRange = ResumeMetadata.getIfRange(request);
             }
-            conn.setRequestProperty("Range", "bytes=" + mDownloadedCacheSize + "-");
 
             Log.d(TAG, "Existing file mDownloadedCacheSize: " + mDownloadedCacheSize);
-            conn.setInstanceFollowRedirects(false);
-            conn.setConnectTimeout(request.getRetryPolicy().getCurrentTimeout());
-            conn.setReadTimeout(request.getRetryPolicy().getCurrentTimeout());
-
-            HashMap<String, String> customHeaders = request.getCustomHeaders();
-            if (customHeaders != null) {
-                for (String headerName : customHeaders.keySet()) {
-                    conn.addRequestProperty(headerName, customHeaders.get(headerName));
-                }
-            }
 
             // Status Connecting is set here before
-            // urlConnection is trying to connect to destination.
+            // the http stack is trying to connect to destination.
             updateDownloadState(request, DownloadManager.STATUS_CONNECTING);
 
-            final int responseCode = conn.getResponseCode();
+            request.getMetrics().onRequestStarted();
+            response = performRequest(request, url, "bytes=" + mDownloadedCacheSize + "-", ifRange);
+            final int responseCode = response.getResponseCode();
+            request.getMetrics().onResponseHeaders();
 
             Log.v("Response code obtained for downloaded Id "
                     + request.getDownloadId()
@@ -168,14 +246,41 @@ class DownloadDispatcher extends Thread {
                 case HTTP_PARTIAL:
                 case HTTP_OK:
                     shouldAllowRedirects = false;
-                    if (readResponseHeaders(request, conn, responseCode) == 1) {
+                    if (mDownloadedCacheSize > 0 && responseCode == HTTP_OK) {
+                        // The server sent the whole resource instead of the range, start over.
+                        Log.v("Resource changed or range not supported, restarting Download Id " + request.getDownloadId());
+                        mDownloadedCacheSize = 0;
+                    } else if (mDownloadedCacheSize > 0 && !ResumeMetadata.matches(request,
+                            response.getHeaderField("ETag"), response.getHeaderField("Last-Modified"))) {
+                        // If-Range was ignored and the range belongs to another version, drop the partial file.
+                        Log.v("Partial file is stale, restarting Download Id " + request.getDownloadId());
+                        response.disconnect();
+                        response = null;
+                        cleanupDestination(request, true);
+                        request.setValidators(null, null);
+                        mDownloadedCacheSize = 0;
+                        executeDownload(request, downloadUrl);
+                        return;
+                    }
+                    if (readResponseHeaders(request, response, responseCode) == 1) {
                         Log.d(TAG, "Existing mDownloadedCacheSize: " + mDownloadedCacheSize);
                         Log.d(TAG, "File mContentLength: " + mContentLength);
                         if (mDownloadedCacheSize == mContentLength) { // Mark as success, If end of stream already reached
                             updateDownloadComplete(request);
                             Log.d(TAG, "Download Completed");
+                        } else if (!request.hasDestinationSink() && !mQueue.reserve(request, mContentLength - mDownloadedCacheSize)) {
+                            // Running downloads hold the space, the scheduler puts the request back until they are done.
+                            Log.v("Waiting for disk space, deferring Download Id " + request.getDownloadId());
+                            updateDownloadState(request, DownloadManager.STATUS_PENDING);
+                        } else if (!request.hasDestinationSink() && !hasUsableSpace(request, mContentLength - mDownloadedCacheSize)) {
+                            updateDownloadFailed(request, DownloadManager.ERROR_INSUFFICIENT_SPACE,
+                                    "Not enough free space for the remaining " + (mContentLength - mDownloadedCacheSize) + " bytes");
+                        } else if (request.hasDestinationSink()) {
+                            transferToSink(request, response);
+                        } else if (shouldSegment(request, responseCode)) {
+                            transferSegments(request, response, url);
                         } else {
-                            transferData(request, conn);
+                            transferData(request, response);
                         }
                     } else {
                         updateDownloadFailed(request, DownloadManager.ERROR_DOWNLOAD_SIZE_UNKNOWN, "Transfer-Encoding not found as well as can't know size of download, giving up");
@@ -189,8 +294,9 @@ class DownloadDispatcher extends Thread {
                     // MAX_REDIRECT is reached.
                     while (mRedirectionCount < MAX_REDIRECTS && shouldAllowRedirects) {
                         mRedirectionCount++;
+                        request.getMetrics().onRedirect();
                         Log.v(TAG, "Redirect for downloaded Id " + request.getDownloadId());
-                        final String location = conn.getHeaderField("Location");
+                        final String location = response.getHeaderField("Location");
                         executeDownload(request, location);
                     }
 
@@ -200,16 +306,16 @@ class DownloadDispatcher extends Thread {
                     }
                     break;
                 case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
-                    updateDownloadFailed(request, HTTP_REQUESTED_RANGE_NOT_SATISFIABLE, conn.getResponseMessage());
+                    updateDownloadFailed(request, HTTP_REQUESTED_RANGE_NOT_SATISFIABLE, response.getResponseMessage());
                     break;
                 case HTTP_UNAVAILABLE:
-                    updateDownloadFailed(request, HTTP_UNAVAILABLE, conn.getResponseMessage());
+                    updateDownloadFailed(request, HTTP_UNAVAILABLE, response.getResponseMessage());
                     break;
                 case HTTP_INTERNAL_ERROR:
-                    updateDownloadFailed(request, HTTP_INTERNAL_ERROR, conn.getResponseMessage());
+                    updateDownloadFailed(request, HTTP_INTERNAL_ERROR, response.getResponseMessage());
                     break;
                 default:
-                    updateDownloadFailed(request, DownloadManager.ERROR_UNHANDLED_HTTP_CODE, "Unhandled HTTP response:" + responseCode + " message:" + conn.getResponseMessage());
+                    updateDownloadFailed(request, DownloadManager.ERROR_UNHANDLED_HTTP_CODE, "Unhandled HTTP response:" + responseCode + " message:" + response.getResponseMessage());
                     break;
             }
         } catch (SocketTimeoutException e) {
@@ -223,19 +329,63 @@ class DownloadDispatcher extends Thread {
             e.printStackTrace();
             updateDownloadFailed(request, DownloadManager.ERROR_HTTP_DATA_ERROR, "Trouble with low-level sockets");
         } finally {
-            if (conn != null) {
-                conn.disconnect();
+            if (response != null) {
+                response.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Sends the request through the queue's {@link HttpStack} with the request's timeout and custom
+     * headers, redirects are handled by the caller.
+     *
+     * @param ifRange - validator for If-Range, null to send none
+     */
+    private HttpStack.Response performRequest(DownloadRequest request, URL url, String range, String ifRange) throws IOException {
+        HashMap<String, String> headers = new HashMap<>();
+        HashMap<String, String> customHeaders = request.getCustomHeaders();
+        if (customHeaders != null) {
+            headers.putAll(customHeaders);
+        }
+        headers.put("Range", range);
+        if (ifRange != null) {
+            headers.put("If-Range", ifRange);
+        }
+        return mRequestQueue.getHttpStack().performRequest(url, headers, request.getRetryPolicy().getCurrentTimeout());
+    }
+
+    /**
+     * Creates the destination file and its parent directories, posting a failure if it can't.
+     */
+    private boolean createDestinationFile(DownloadRequest request, File destinationFile) {
+        try {
+            // Check path
+            File parentPath = destinationFile.getParentFile();
+            if (parentPath != null && !parentPath.exists()) {
+                parentPath.mkdirs();
             }
+            if (destinationFile.createNewFile()) {
+                return true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR,
+                "Error in creating destination file");
+        return false;
     }
 
-    private void transferData(DownloadRequest request, HttpURLConnection conn) {
-        BufferedInputStream in = null;
+    private void transferData(DownloadRequest request, HttpStack.Response response) {
+        InputStream in = null;
         RandomAccessFile accessFile = null;
-        cleanupDestination(request, false);
+        final boolean useChannels = mRequestQueue.isChannelTransferEnabled();
+        if (mDownloadedCacheSize == 0) {
+            cleanupDestination(request, false);
+        }
         try {
             try {
-                in = new BufferedInputStream(conn.getInputStream());
+                // Reads go straight into the pooled buffer, no need for a buffered stream copy.
+                in = response.getInputStream();
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -245,23 +395,7 @@ class DownloadDispatcher extends Thread {
             boolean errorCreatingDestinationFile = false;
             // Create destination file if it doesn't exists
             if (!destinationFile.exists()) {
-                try {
-                    // Check path
-                    File parentPath = destinationFile.getParentFile();
-                    if (parentPath != null && !parentPath.exists()) {
-                        parentPath.mkdirs();
-                    }
-                    if (!destinationFile.createNewFile()) {
-                        errorCreatingDestinationFile = true;
-                        updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR,
-                                "Error in creating destination file");
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    errorCreatingDestinationFile = true;
-                    updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR,
-                            "Error in creating destination file");
-                }
+                errorCreatingDestinationFile = !createDestinationFile(request, destinationFile);
             } else {
                 if (in != null) {
                     request.abortCancel();
@@ -272,6 +406,8 @@ class DownloadDispatcher extends Thread {
             if (!errorCreatingDestinationFile) {
                 try {
                     accessFile = new RandomAccessFile(destinationFile, "rw");
+                    // Drop anything beyond the resume offset, e.g. when a changed resource restarts from zero.
+                    accessFile.setLength(mDownloadedCacheSize);
                     accessFile.seek(mDownloadedCacheSize);
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -285,8 +421,27 @@ class DownloadDispatcher extends Thread {
                     updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR,
                             "Error in writing download contents to the destination file");
                 } else {
-                    // Start streaming data
-                    transferData(request, in, accessFile);
+                    checkpointStart(request, mDownloadedCacheSize);
+                    BufferPool bufferPool = mRequestQueue.getBufferPool();
+                    ByteBuffer buffer = bufferPool.acquire(useChannels);
+                    try {
+                        if (!prepareDigest(request, destinationFile)) {
+                            updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR,
+                                    "Error in reading the partially downloaded file");
+                        } else if (preallocate(request, accessFile, mDownloadedCacheSize)) {
+                            int pipelineDepth = mRequestQueue.getWritePipelineDepth();
+                            if (pipelineDepth > 1) {
+                                transferDataPipelined(request, Channels.newChannel(in), accessFile.getChannel(), buffer, pipelineDepth);
+                            } else if (useChannels) {
+                                transferData(request, Channels.newChannel(in), accessFile.getChannel(), buffer);
+                            } else {
+                                // Start streaming data
+                                transferData(request, in, accessFile, buffer.array());
+                            }
+                        }
+                    } finally {
+                        bufferPool.release(buffer);
+                    }
                 }
             }
 
@@ -315,14 +470,15 @@ class DownloadDispatcher extends Thread {
         }
     }
 
-    private void transferData(DownloadRequest request, InputStream in, RandomAccessFile out) {
-        final byte data[] = new byte[BUFFER_SIZE];
+    private void transferData(DownloadRequest request, InputStream in, RandomAccessFile out, byte[] data) {
+        final DownloadDigest digest = request.getDigest();
         long mCurrentBytes = mDownloadedCacheSize;
         request.setDownloadState(DownloadManager.STATUS_RUNNING);
         Log.v("Content Length: " + mContentLength + " for Download Id " + request.getDownloadId());
         for (; ; ) {
             if (request.isCancelled()) {
                 Log.v("Stopping the download as Download Request is cancelled for Downloaded Id " + request.getDownloadId());
+                releasePreallocation(request, out.getChannel(), mCurrentBytes);
                 request.finish();
                 updateDownloadFailed(request, DownloadManager.ERROR_DOWNLOAD_CANCELLED, "Download cancelled");
                 return;
@@ -334,16 +490,25 @@ class DownloadDispatcher extends Thread {
                 updateDownloadProgress(request, progress, mCurrentBytes);
             }
 
-            if (bytesRead == -1) { // success, end of stream already reached
+            if (bytesRead == -1 && (mContentLength <= 0 || mCurrentBytes >= mContentLength)) { // success, end of stream already reached
                 updateDownloadComplete(request);
                 return;
-            } else if (bytesRead == Integer.MIN_VALUE) {
+            } else if (bytesRead == -1 || bytesRead == Integer.MIN_VALUE) {
+                // The response broke off before its end.
+                releasePreallocation(request, out.getChannel(), mCurrentBytes);
+                resumeAfterReadError(request, mCurrentBytes);
                 return;
             }
 
             if (writeDataToDestination(request, data, bytesRead, out)) {
+                if (digest != null) {
+                    digest.update(data, 0, bytesRead);
+                }
                 mCurrentBytes += bytesRead;
+                checkpoint(request, mCurrentBytes);
+                throttle(request, bytesRead);
             } else {
+                releasePreallocation(request, out.getChannel(), mCurrentBytes);
                 request.finish();
                 updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR, "Failed writing file");
                 return;
@@ -351,112 +516,1230 @@ class DownloadDispatcher extends Thread {
         }
     }
 
-    private int readFromResponse(DownloadRequest request, byte[] data, InputStream entityStream) {
-        try {
-            return entityStream.read(data);
-        } catch (IOException ex) {
-            if ("unexpected end of stream".equals(ex.getMessage())) {
-                return -1;
+    /**
+     * Channel variant of the transfer loop. The buffer is filled completely before it is written,
+     * so the destination sees one positional write per buffer rather than one per network read.
+     */
+    private void transferData(DownloadRequest request, ReadableByteChannel in, FileChannel out, ByteBuffer buffer) {
+        final DownloadDigest digest = request.getDigest();
+        long mCurrentBytes = mDownloadedCacheSize;
+        request.setDownloadState(DownloadManager.STATUS_RUNNING);
+        Log.v("Content Length: " + mContentLength + " for Download Id " + request.getDownloadId());
+        for (; ; ) {
+            if (request.isCancelled()) {
+                Log.v("Stopping the download as Download Request is cancelled for Downloaded Id " + request.getDownloadId());
+                releasePreallocation(request, out, mCurrentBytes);
+                request.finish();
+                updateDownloadFailed(request, DownloadManager.ERROR_DOWNLOAD_CANCELLED, "Download cancelled");
+                return;
+            }
+            buffer.clear();
+            int bytesRead = readFromResponse(request, buffer, in);
+
+            if (mContentLength != -1 && mContentLength > 0) {
+                int progress = (int) ((mCurrentBytes * 100) / mContentLength);
+                updateDownloadProgress(request, progress, mCurrentBytes);
+            }
+
+            if (bytesRead == -1 && (mContentLength <= 0 || mCurrentBytes >= mContentLength)) { // success, end of stream already reached
+                updateDownloadComplete(request);
+                return;
+            } else if (bytesRead == -1 || bytesRead == Integer.MIN_VALUE) {
+                // The response broke off before its end.
+                releasePreallocation(request, out, mCurrentBytes);
+                resumeAfterReadError(request, mCurrentBytes);
+                return;
+            }
+
+            buffer.flip();
+            if (digest != null) {
+                digest.update(buffer.duplicate());
+            }
+            if (writeDataToDestination(request, buffer, mCurrentBytes, out)) {
+                mCurrentBytes += bytesRead;
+                checkpoint(request, mCurrentBytes);
+                throttle(request, bytesRead);
+            } else {
+                releasePreallocation(request, out, mCurrentBytes);
+                request.finish();
+                updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR, "Failed writing file");
+                return;
             }
-            updateDownloadFailed(request, DownloadManager.ERROR_HTTP_DATA_ERROR, "IOException: Failed reading response");
-            return Integer.MIN_VALUE;
         }
     }
 
-    private boolean writeDataToDestination(DownloadRequest request, byte[] data, int bytesRead, RandomAccessFile out) {
-        boolean successInWritingToDestination = true;
+    /**
+     * Pipelined variant of the channel transfer loop. This thread fills buffers from the response
+     * while a {@link WriteStage} on the writer pool of the queue writes the filled ones to the
+     * destination, the two hand buffers to each other through a ring of {@code depth} buffers.
+     * Reads stop while every buffer waits for the disk. The resume offset and checkpoints only
+     * cover bytes the writer has written.
+     *
+     * @param buffer - first buffer of the ring, the others are borrowed from the pool
+     */
+    private void transferDataPipelined(DownloadRequest request, ReadableByteChannel in, FileChannel out, ByteBuffer buffer, int depth) {
+        BufferPool bufferPool = mRequestQueue.getBufferPool();
+        ByteBuffer[] buffers = new ByteBuffer[depth];
+        buffers[0] = buffer;
+        for (int i = 1; i < depth; i++) {
+            buffers[i] = bufferPool.acquire(buffer.isDirect());
+        }
+        ExecutorService writerExecutor = mRequestQueue.getWriterExecutor();
+        WriteStage writer = new WriteStage(request, out, mDownloadedCacheSize, buffers, writerExecutor);
+        long mCurrentBytes = mDownloadedCacheSize;
+        int bytesRead = 0;
+        boolean cancelled = false;
+        boolean interrupted = false;
+        boolean started = true;
+        request.setDownloadState(DownloadManager.STATUS_RUNNING);
+        Log.v("Content Length: " + mContentLength + " for Download Id " + request.getDownloadId());
         try {
-            out.write(data, 0, bytesRead);
-        } catch (IOException ex) {
-            updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR, "IOException when writing download contents to the destination file");
-            successInWritingToDestination = false;
-        } catch (Exception e) {
-            updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR, "Exception when writing download contents to the destination file");
-            successInWritingToDestination = false;
+            writerExecutor.execute(writer);
+        } catch (RejectedExecutionException e) {
+            // The queue is being released.
+            started = false;
+            cancelled = true;
         }
+        try {
+            while (started && !writer.mFailed) {
+                if (request.isCancelled()) {
+                    Log.v("Stopping the download as Download Request is cancelled for Downloaded Id " + request.getDownloadId());
+                    cancelled = true;
+                    break;
+                }
+                ByteBuffer next = writer.takeFreeBuffer();
+                if (next == null) {
+                    break;
+                }
+                next.clear();
+                bytesRead = readFromResponse(request, next, in);
 
-        return successInWritingToDestination;
-    }
+                if (mContentLength != -1 && mContentLength > 0) {
+                    int progress = (int) ((mCurrentBytes * 100) / mContentLength);
+                    updateDownloadProgress(request, progress, mCurrentBytes);
+                }
 
-    private int readResponseHeaders(DownloadRequest request, HttpURLConnection conn, int responseCode) {
-        final String transferEncoding = conn.getHeaderField("Transfer-Encoding");
-        mContentLength = -1;
+                if (bytesRead == -1 || bytesRead == Integer.MIN_VALUE) {
+                    writer.mFree.add(next);
+                    break;
+                }
+                next.flip();
+                writer.mFilled.put(next);
+                mCurrentBytes += bytesRead;
+                throttle(request, bytesRead);
+            }
+        } catch (InterruptedException e) {
+            // The queue is quitting, stop like a cancel and hand the interrupt back to the dispatcher loop.
+            cancelled = true;
+            interrupted = true;
+        }
 
-        if (transferEncoding == null) {
-            if (responseCode == HTTP_OK) {
-                // If file download already completed, 200 HttpStatusCode will thrown by service.
-                mContentLength = getHeaderFieldLong(conn, "Content-Length", -1);
-            } else {
-                // If file download already partially completed, 206 HttpStatusCode will thrown by service and we can resume remaining chunks downloads.
-                mContentLength = getHeaderFieldLong(conn, "Content-Length", -1) + mDownloadedCacheSize;
+        // Let the writer finish the buffers already read, then stop it.
+        writer.mFilled.add(PIPELINE_END);
+        while (started) {
+            try {
+                if (writer.awaitStopped()) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
-        } else {
-            Log.v("Ignoring Content-Length since Transfer-Encoding is also defined for Downloaded Id " + request.getDownloadId());
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 1; i < depth; i++) {
+            bufferPool.release(buffers[i]);
         }
 
-        if (mContentLength != -1) {
-            return 1;
-        } else if (transferEncoding == null || !transferEncoding.equalsIgnoreCase("chunked")) {
-            return -1;
+        long committed = writer.mCommitted;
+        if (cancelled) {
+            releasePreallocation(request, out, committed);
+            request.finish();
+            updateDownloadFailed(request, DownloadManager.ERROR_DOWNLOAD_CANCELLED, "Download cancelled");
+        } else if (writer.mFailed) {
+            releasePreallocation(request, out, committed);
+            request.finish();
+            updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR, "Failed writing file");
+        } else if (bytesRead == -1 && (mContentLength <= 0 || committed >= mContentLength)) { // success, end of stream already reached
+            updateDownloadComplete(request);
         } else {
-            return 1;
+            // The response broke off before its end.
+            releasePreallocation(request, out, committed);
+            resumeAfterReadError(request, committed);
+        }
+    }
+
+    /**
+     * Writer side of {@link #transferDataPipelined}. Filled buffers are written in the order they
+     * were read and go back to the free list afterwards. After a failed write the remaining
+     * buffers are only returned, so the reader never waits on a dead writer.
+     */
+    private class WriteStage implements Runnable {
+
+        final DownloadRequest mRequest;
+        final FileChannel mOut;
+        final ArrayBlockingQueue<ByteBuffer> mFree;
+        /** One slot more than the ring for {@link #PIPELINE_END}, so handing it over never blocks. */
+        final ArrayBlockingQueue<ByteBuffer> mFilled;
+        /** Pool the writer runs on, a release may drop it before it ever started. */
+        final ExecutorService mExecutor;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile long mCommitted;
+        volatile boolean mFailed;
+
+        WriteStage(DownloadRequest request, FileChannel out, long committed, ByteBuffer[] buffers, ExecutorService executor) {
+            mRequest = request;
+            mExecutor = executor;
+            mOut = out;
+            mCommitted = committed;
+            mFree = new ArrayBlockingQueue<>(buffers.length, false, Arrays.asList(buffers));
+            mFilled = new ArrayBlockingQueue<>(buffers.length + 1);
+        }
+
+        @Override
+        public void run() {
+            final DownloadDigest digest = mRequest.getDigest();
+            try {
+                for (; ; ) {
+                    ByteBuffer buffer = mFilled.take();
+                    if (buffer == PIPELINE_END) {
+                        return;
+                    }
+                    if (!mFailed) {
+                        int bytes = buffer.remaining();
+                        if (digest != null) {
+                            digest.update(buffer.duplicate());
+                        }
+                        if (write(buffer)) {
+                            mCommitted += bytes;
+                            checkpoint(mRequest, mCommitted);
+                        } else {
+                            mFailed = true;
+                        }
+                    }
+                    mFree.add(buffer);
+                }
+            } catch (InterruptedException e) {
+                // The queue is being released.
+                mFailed = true;
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        /**
+         * Waits for a buffer to fill, null if the writer stopped before returning one.
+         */
+        ByteBuffer takeFreeBuffer() throws InterruptedException {
+            ByteBuffer buffer;
+            while ((buffer = mFree.poll(THROTTLE_SLICE_MS, TimeUnit.MILLISECONDS)) == null) {
+                if (mDone.getCount() == 0 || mExecutor.isTerminated()) {
+                    return null;
+                }
+            }
+            return buffer;
+        }
+
+        /**
+         * Waits a short while for the writer to stop.
+         *
+         * @return true if it stopped or will never run
+         */
+        boolean awaitStopped() throws InterruptedException {
+            return mDone.await(THROTTLE_SLICE_MS, TimeUnit.MILLISECONDS) || mExecutor.isTerminated();
+        }
+
+        private boolean write(ByteBuffer buffer) {
+            long started = System.nanoTime();
+            long position = mCommitted;
+            try {
+                while (buffer.hasRemaining()) {
+                    position += mOut.write(buffer, position);
+                }
+                mRequest.getMetrics().onDiskWrite(System.nanoTime() - started);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return false;
         }
     }
 
-    private long getHeaderFieldLong(URLConnection conn, String field, long defaultValue) {
+    /**
+     * Streams the response body to the request's destination stream or channel. Nothing touches
+     * the disk, so there is no resume offset, checkpoint or segmenting. A response that ends short
+     * of its Content-Length fails with {@link DownloadManager#ERROR_HTTP_DATA_ERROR}.
+     */
+    private void transferToSink(DownloadRequest request, HttpStack.Response response) {
+        InputStream in;
         try {
-            return Long.parseLong(conn.getHeaderField(field));
-        } catch (NumberFormatException e) {
-            return defaultValue;
+            in = response.getInputStream();
+        } catch (IOException e) {
+            e.printStackTrace();
+            updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR,
+                    "Error in creating input stream");
+            return;
+        }
+        final DownloadDigest digest = request.getChecksumType() != null ? new DownloadDigest(request.getChecksumType()) : null;
+        request.setDigest(digest);
+        BufferPool bufferPool = mRequestQueue.getBufferPool();
+        ByteBuffer buffer = bufferPool.acquire(false);
+        byte[] data = buffer.array();
+        long mCurrentBytes = 0;
+        request.setDownloadState(DownloadManager.STATUS_RUNNING);
+        Log.v("Content Length: " + mContentLength + " for Download Id " + request.getDownloadId());
+        try {
+            for (; ; ) {
+                if (request.isCancelled()) {
+                    Log.v("Stopping the download as Download Request is cancelled for Downloaded Id " + request.getDownloadId());
+                    request.finish();
+                    updateDownloadFailed(request, DownloadManager.ERROR_DOWNLOAD_CANCELLED, "Download cancelled");
+                    return;
+                }
+                int bytesRead = readFromResponse(request, data, in);
+
+                if (mContentLength != -1 && mContentLength > 0) {
+                    int progress = (int) ((mCurrentBytes * 100) / mContentLength);
+                    updateDownloadProgress(request, progress, mCurrentBytes);
+                }
+
+                if (bytesRead == -1 && mContentLength > 0 && mCurrentBytes != mContentLength) {
+                    // The bytes already went to the sink, the consumer has to drop them.
+                    updateDownloadFailed(request, DownloadManager.ERROR_HTTP_DATA_ERROR,
+                            "Response ended after " + mCurrentBytes + " of " + mContentLength + " bytes");
+                    return;
+                } else if (bytesRead == -1) { // success, end of stream already reached
+                    if (writeDataToSink(request, data, 0)) {
+                        updateDownloadComplete(request);
+                    }
+                    return;
+                } else if (bytesRead == Integer.MIN_VALUE) {
+                    // The bytes already went to the sink, a retry can't take them back.
+                    updateDownloadFailed(request, DownloadManager.ERROR_HTTP_DATA_ERROR, "IOException: Failed reading response");
+                    return;
+                }
+
+                if (writeDataToSink(request, data, bytesRead)) {
+                    if (digest != null) {
+                        digest.update(data, 0, bytesRead);
+                    }
+                    mCurrentBytes += bytesRead;
+                    throttle(request, bytesRead);
+                } else {
+                    return;
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
-    private void attemptRetryOnTimeOutException(final DownloadRequest request) {
-        updateDownloadState(request, DownloadManager.STATUS_RETRYING);
-        final RetryPolicy retryPolicy = request.getRetryPolicy();
+    /**
+     * Writes to the destination stream or channel of the request, zero bytes just flush the stream.
+     */
+    private boolean writeDataToSink(DownloadRequest request, byte[] data, int bytesRead) {
+        long started = System.nanoTime();
         try {
-            retryPolicy.retry();
-            mTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    executeDownload(request, request.getUri().toString());
+            OutputStream out = request.getDestinationStream();
+            if (out != null) {
+                if (bytesRead == 0) {
+                    out.flush();
+                } else {
+                    out.write(data, 0, bytesRead);
                 }
-            }, retryPolicy.getCurrentTimeout());
-        } catch (RetryError e) {
-            // Update download failed.
-            updateDownloadFailed(request, DownloadManager.ERROR_CONNECTION_TIMEOUT_AFTER_RETRIES,
-                    "Connection time out after maximum retires attempted");
+            } else {
+                WritableByteChannel channel = request.getDestinationChannel();
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, bytesRead);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            request.getMetrics().onDiskWrite(System.nanoTime() - started);
+            return true;
+        } catch (IOException ex) {
+            updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR, "IOException when writing download contents to the destination sink");
+        } catch (Exception e) {
+            updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR, "Exception when writing download contents to the destination sink");
         }
+        return false;
     }
 
     /**
-     * Called just before the thread finishes, regardless of status, to take any necessary action on
-     * the downloaded file with mDownloadedCacheSize file.
-     *
-     * @param forceClean -  It will delete downloaded cache, Even streaming is enabled, If user intentionally cancelled.
+     * Reads until the buffer is full or the stream ends. Returns the number of bytes read, -1 when
+     * the stream had already ended or {@link Integer#MIN_VALUE} when reading failed.
      */
-    private void cleanupDestination(DownloadRequest request, boolean forceClean) {
-        if (!request.isResumable() || forceClean) {
-            Log.d("cleanupDestination() deleting " + request.getDestinationURI().getPath());
-            File destinationFile = new File(request.getDestinationURI().getPath());
-            if (destinationFile.exists()) {
-                destinationFile.delete();
+    private int readFromResponse(DownloadRequest request, ByteBuffer buffer, ReadableByteChannel channel) {
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            if (!"unexpected end of stream".equals(ex.getMessage())) {
+                return Integer.MIN_VALUE;
             }
         }
+        return buffer.position() == 0 ? -1 : buffer.position();
     }
 
-    private void updateDownloadState(DownloadRequest request, int state) {
-        request.setDownloadState(state);
+    private boolean writeDataToDestination(DownloadRequest request, ByteBuffer buffer, long position, FileChannel out) {
+        long started = System.nanoTime();
+        try {
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+            request.getMetrics().onDiskWrite(System.nanoTime() - started);
+            return true;
+        } catch (IOException ex) {
+            updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR, "IOException when writing download contents to the destination file");
+        } catch (Exception e) {
+            updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR, "Exception when writing download contents to the destination file");
+        }
+        return false;
+    }
+
+    /**
+     * Sets up the running checksum of a request verified by checksum. A checksum left by an earlier
+     * attempt is reused when it covers exactly the bytes on disk, otherwise it is rebuilt from the
+     * partial file once.
+     *
+     * @return false if the partial file couldn't be read
+     */
+    private boolean prepareDigest(DownloadRequest request, File destinationFile) {
+        DownloadRequest.ChecksumType type = request.getChecksumType();
+        if (type == null) {
+            return true;
+        }
+        DownloadDigest digest = request.getDigest();
+        if (digest != null && digest.getType() == type && digest.getLength() == mDownloadedCacheSize) {
+            return true;
+        }
+        if (mDownloadedCacheSize == 0) {
+            request.setDigest(new DownloadDigest(type));
+            return true;
+        }
+        BufferPool bufferPool = mRequestQueue.getBufferPool();
+        ByteBuffer buffer = bufferPool.acquire(false);
+        try {
+            request.setDigest(DownloadDigest.of(type, destinationFile, mDownloadedCacheSize, buffer.array()));
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            request.setDigest(null);
+            return false;
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Compares the finished file with the expected checksum of the request. Uses the running
+     * checksum when it covers the whole file, otherwise reads the file, e.g. after a segmented download.
+     */
+    private boolean verifyChecksum(DownloadRequest request) {
+        DownloadDigest digest = request.getDigest();
+        request.setDigest(null);
+        if (request.hasDestinationSink()) {
+            // The bytes are gone, only the running checksum can tell. No digest means an empty body.
+            if (digest == null) {
+                digest = new DownloadDigest(request.getChecksumType());
+            }
+            return digest.toHex().equals(request.getExpectedChecksum());
+        }
+        File destinationFile = new File(request.getDestinationURI().getPath());
+        if (digest == null || digest.getType() != request.getChecksumType() || digest.getLength() != destinationFile.length()) {
+            BufferPool bufferPool = mRequestQueue.getBufferPool();
+            ByteBuffer buffer = bufferPool.acquire(false);
+            try {
+                digest = DownloadDigest.of(request.getChecksumType(), destinationFile, destinationFile.length(), buffer.array());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }
+        String checksum = digest.toHex();
+        Log.v("Checksum " + checksum + " for Download Id " + request.getDownloadId());
+        return checksum.equals(request.getExpectedChecksum());
+    }
+
+    /**
+     * A download is split into byte ranges only when it starts from scratch, its size is known and
+     * the server answered the initial range request with a partial content.
+     */
+    private boolean shouldSegment(DownloadRequest request, int responseCode) {
+        return responseCode == HTTP_PARTIAL
+                && mDownloadedCacheSize == 0
+                && request.getSegmentCount() > 1
+                && mContentLength >= 2 * request.getMinSegmentSize();
+    }
+
+    /**
+     * Fetches the resource as parallel byte ranges. The first range is read from the response
+     * already opened by this dispatcher, the remaining ones run on the queue's segment pool with
+     * connections of their own. Each segment writes at its offset in the destination file. The
+     * segments ask for their ranges with If-Range, a response from another version of the resource
+     * starts the download over.
+     */
+    private void transferSegments(DownloadRequest request, HttpStack.Response response, URL url) {
+        cleanupDestination(request, false);
+        // Segments arrive out of order, the checksum is computed from the file once it is complete.
+        request.setDigest(null);
+        File destinationFile = new File(request.getDestinationURI().getPath());
+        if (!destinationFile.exists() && !createDestinationFile(request, destinationFile)) {
+            return;
+        }
+        checkpointStart(request, 0);
+        // Segments write out of order, reserving the whole file keeps it from ending up fragmented.
+        // A segment stopping early cuts the file back to its contiguous prefix anyway.
+        RandomAccessFile accessFile = null;
+        try {
+            accessFile = new RandomAccessFile(destinationFile, "rw");
+            if (!preallocate(request, accessFile, 0)) {
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (accessFile != null) accessFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        final boolean preallocated = mPreallocated;
+        mPreallocated = false;
+
+        InputStream in;
+        try {
+            in = response.getInputStream();
+        } catch (IOException e) {
+            e.printStackTrace();
+            updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR,
+                    "Error in creating input stream");
+            return;
+        }
+
+        int segmentCount = (int) Math.min(request.getSegmentCount(), mContentLength / request.getMinSegmentSize());
+        long segmentSize = mContentLength / segmentCount;
+        SegmentedTransfer transfer = new SegmentedTransfer(request, url, destinationFile, mContentLength);
+        Segment[] segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long start = i * segmentSize;
+            long end = (i == segmentCount - 1) ? mContentLength - 1 : start + segmentSize - 1;
+            segments[i] = new Segment(transfer, start, end, i == 0 ? in : null);
+        }
+        transfer.mSegments = segments;
+        Log.v("Downloading " + mContentLength + " bytes in " + segmentCount
+                + " segments for Download Id " + request.getDownloadId());
+
+        request.setDownloadState(DownloadManager.STATUS_RUNNING);
+        ExecutorService segmentExecutor = mRequestQueue.getSegmentExecutor();
+        Future<?>[] futures = new Future<?>[segmentCount];
+        for (int i = 1; i < segmentCount; i++) {
+            try {
+                futures[i] = segmentExecutor.submit(segments[i]);
+            } catch (RejectedExecutionException e) {
+                // The queue is being released.
+                transfer.fail(DownloadManager.ERROR_DOWNLOAD_CANCELLED, "Download cancelled");
+            }
+        }
+        segments[0].run();
+        boolean interrupted = false;
+        for (int i = 1; i < segmentCount; i++) {
+            while (futures[i] != null) {
+                try {
+                    futures[i].get();
+                    break;
+                } catch (InterruptedException e) {
+                    // Stop the sibling segments, the interrupt is handed back to the dispatcher loop.
+                    transfer.fail(DownloadManager.ERROR_DOWNLOAD_CANCELLED, "Download cancelled");
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    transfer.fail(DownloadManager.ERROR_HTTP_DATA_ERROR, "Segment failed: " + e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (request.isCancelled()) {
+            Log.v("Stopping the download as Download Request is cancelled for Downloaded Id " + request.getDownloadId());
+            trimToContiguousPrefix(request, destinationFile, segments, preallocated);
+            request.finish();
+            updateDownloadFailed(request, DownloadManager.ERROR_DOWNLOAD_CANCELLED, "Download cancelled");
+        } else if (transfer.mChanged && !mSegmentsRestarted && !interrupted) {
+            // Bytes of two versions must not end up in one file.
+            Log.v("Resource changed during segmented download, restarting Download Id " + request.getDownloadId());
+            mSegmentsRestarted = true;
+            cleanupDestination(request, true);
+            mDownloadedCacheSize = 0;
+            executeDownload(request, transfer.mUrl.toString());
+        } else if (transfer.mFailed) {
+            trimToContiguousPrefix(request, destinationFile, segments, preallocated);
+            updateDownloadFailed(request, transfer.mErrorCode, transfer.mErrorMessage);
+        } else {
+            updateDownloadComplete(request);
+        }
+    }
+
+    /**
+     * Segments may leave holes in the file when they stop early, cut it back to the bytes that were
+     * written contiguously from the start so a resumed download continues from a valid offset.
+     */
+    private void trimToContiguousPrefix(DownloadRequest request, File destinationFile, Segment[] segments, boolean preallocated) {
+        if (request.getDeleteDestinationFileOnFailure() || !destinationFile.exists()) {
+            return;
+        }
+        RandomAccessFile accessFile = null;
+        try {
+            accessFile = new RandomAccessFile(destinationFile, "rw");
+            accessFile.setLength(getContiguousLength(segments));
+            if (preallocated && request.isResumable()) {
+                // The file length is accurate again.
+                ResumeMetadata.save(request);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (accessFile != null) accessFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns how many bytes were written without holes from the start of the file.
+     */
+    private static long getContiguousLength(Segment[] segments) {
+        long contiguousLength = 0;
+        for (Segment segment : segments) {
+            contiguousLength += segment.mWritten;
+            if (!segment.isComplete()) {
+                break;
+            }
+        }
+        return contiguousLength;
+    }
+
+    /**
+     * State shared by all the segments of one download.
+     */
+    private class SegmentedTransfer {
+        final DownloadRequest mRequest;
+        final URL mUrl;
+        final File mDestinationFile;
+        final long mTotalBytes;
+        Segment[] mSegments;
+        long mDownloadedBytes;
+        volatile boolean mFailed;
+        /** Whether a segment got its range from another version of the resource. */
+        volatile boolean mChanged;
+        int mErrorCode;
+        String mErrorMessage;
+
+        SegmentedTransfer(DownloadRequest request, URL url, File destinationFile, long totalBytes) {
+            mRequest = request;
+            mUrl = url;
+            mDestinationFile = destinationFile;
+            mTotalBytes = totalBytes;
+        }
+
+        /**
+         * Returns whether a segment response carries the validators of the initial response, which
+         * the request holds. Unlike a resume, a missing validator counts as a mismatch here.
+         */
+        boolean isSameVersion(HttpStack.Response response) {
+            return equal(mRequest.getETag(), response.getHeaderField("ETag"))
+                    && equal(mRequest.getLastModified(), response.getHeaderField("Last-Modified"));
+        }
+
+        private boolean equal(String expected, String actual) {
+            return expected == null || expected.equals(actual);
+        }
+
+        /**
+         * Stops the segments because the resource changed since the initial response.
+         */
+        void onChanged() {
+            mChanged = true;
+            fail(DownloadManager.ERROR_HTTP_DATA_ERROR, "Resource changed during segmented download");
+        }
+
+        void onBytesWritten(int bytes) {
+            synchronized (this) {
+                mDownloadedBytes += bytes;
+                int progress = (int) ((mDownloadedBytes * 100) / mTotalBytes);
+                updateDownloadProgress(mRequest, progress, mDownloadedBytes);
+            }
+            // Only the contiguous prefix is valid data for a resume. The journal write happens
+            // outside the lock so the other segments don't wait for its fsync.
+            checkpoint(mRequest, getContiguousLength(mSegments));
+        }
+
+        /**
+         * Records the first failure, the other segments stop at their next read.
+         */
+        synchronized void fail(int errorCode, String errorMessage) {
+            if (!mFailed) {
+                mErrorCode = errorCode;
+                mErrorMessage = errorMessage;
+                mFailed = true;
+            }
+        }
+
+        /**
+         * Returns whether the segments should stop, which an interrupt from a releasing queue turns
+         * into a cancel.
+         */
+        boolean shouldStop() {
+            if (Thread.currentThread().isInterrupted()) {
+                fail(DownloadManager.ERROR_DOWNLOAD_CANCELLED, "Download cancelled");
+            }
+            return mFailed || mRequest.isCancelled();
+        }
+    }
+
+    /**
+     * One inclusive byte range of a segmented download.
+     */
+    private class Segment implements Runnable {
+        private final SegmentedTransfer mTransfer;
+        private final long mStart;
+        private final long mEnd;
+        private InputStream mInput;
+        volatile long mWritten;
+        /** Error of the last broken attempt, reported once the retries are used up. */
+        private int mRetryErrorCode;
+        private String mRetryErrorMessage;
+
+        Segment(SegmentedTransfer transfer, long start, long end, InputStream input) {
+            mTransfer = transfer;
+            mStart = start;
+            mEnd = end;
+            mInput = input;
+        }
+
+        boolean isComplete() {
+            return mWritten == mEnd - mStart + 1;
+        }
+
+        /**
+         * Transfers the range, reconnecting for the bytes still missing when the response breaks off
+         * or times out, as long as the request's retry policy allows.
+         */
+        @Override
+        public void run() {
+            RandomAccessFile out = null;
+            try {
+                out = new RandomAccessFile(mTransfer.mDestinationFile, "rw");
+                while (!transferRange(out)) {
+                    if (!awaitRetry()) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                mTransfer.fail(DownloadManager.ERROR_FILE_ERROR, "IOException when opening the destination file");
+            } finally {
+                try {
+                    if (mInput != null) mInput.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                try {
+                    if (out != null) out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Makes one attempt at the rest of the range.
+         *
+         * @return false if the attempt broke off and may be retried, the error is kept for when the
+         * retries are used up
+         */
+        private boolean transferRange(RandomAccessFile out) {
+            HttpStack.Response response = null;
+            try {
+                if (mInput == null) {
+                    // If-Range keeps the segments, and their retries, on the version of the first response.
+                    response = performRequest(mTransfer.mRequest, mTransfer.mUrl, "bytes=" + (mStart + mWritten) + "-" + mEnd,
+                            ResumeMetadata.getIfRange(mTransfer.mRequest));
+                    final int responseCode = response.getResponseCode();
+                    if (responseCode == HTTP_OK || (responseCode == HTTP_PARTIAL && !mTransfer.isSameVersion(response))) {
+                        // The whole resource instead of the range, or a range of another version.
+                        mTransfer.onChanged();
+                        return true;
+                    } else if (responseCode != HTTP_PARTIAL) {
+                        mTransfer.fail(DownloadManager.ERROR_UNHANDLED_HTTP_CODE,
+                                "Range request not honoured for segment, HTTP response:" + responseCode);
+                        return true;
+                    }
+                    mInput = response.getInputStream();
+                }
+                out.seek(mStart + mWritten);
+                return transferSegment(out);
+            } catch (SocketTimeoutException e) {
+                e.printStackTrace();
+                setRetryError(DownloadManager.ERROR_CONNECTION_TIMEOUT_AFTER_RETRIES, "Segment connection timed out");
+            } catch (IOException e) {
+                e.printStackTrace();
+                setRetryError(DownloadManager.ERROR_HTTP_DATA_ERROR, "Trouble with low-level sockets");
+            } finally {
+                if (response != null) {
+                    response.disconnect();
+                }
+            }
+            return false;
+        }
+
+        private void setRetryError(int errorCode, String errorMessage) {
+            mRetryErrorCode = errorCode;
+            mRetryErrorMessage = errorMessage;
+        }
+
+        /**
+         * Closes the broken response and waits out the retry backoff of the queue.
+         *
+         * @return false if the retries are used up or the transfer stopped meanwhile
+         */
+        private boolean awaitRetry() {
+            try {
+                if (mInput != null) mInput.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mInput = null;
+            DownloadRequest request = mTransfer.mRequest;
+            RetryPolicy retryPolicy = request.getRetryPolicy();
+            int retryCount;
+            // The segments share the retry budget of the request.
+            synchronized (retryPolicy) {
+                try {
+                    retryPolicy.retry();
+                } catch (RetryError e) {
+                    mTransfer.fail(mRetryErrorCode, mRetryErrorMessage);
+                    return false;
+                }
+                retryCount = retryPolicy.getCurrentRetryCount();
+            }
+            request.getMetrics().onRetry();
+            long delayMs = mRequestQueue.getRetryDelay(retryCount);
+            Log.v("Segment broke off after " + (mStart + mWritten) + " bytes for Download Id "
+                    + request.getDownloadId() + ", retrying in " + delayMs + " ms");
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+            try {
+                long remaining;
+                while (!mTransfer.shouldStop() && (remaining = deadline - System.nanoTime()) > 0) {
+                    Thread.sleep(Math.min(THROTTLE_SLICE_MS, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return !mTransfer.shouldStop();
+        }
+
+        private boolean transferSegment(RandomAccessFile out) {
+            BufferPool bufferPool = mRequestQueue.getBufferPool();
+            ByteBuffer buffer = bufferPool.acquire(false);
+            try {
+                return transferSegment(out, buffer.array());
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }
+
+        /**
+         * @return false if the response broke off before the end of the range
+         */
+        private boolean transferSegment(RandomAccessFile out, byte[] data) {
+            long remaining = mEnd - mStart + 1 - mWritten;
+            while (remaining > 0) {
+                if (mTransfer.shouldStop()) {
+                    return true;
+                }
+                int bytesRead;
+                try {
+                    bytesRead = mInput.read(data, 0, (int) Math.min(data.length, remaining));
+                } catch (SocketTimeoutException e) {
+                    setRetryError(DownloadManager.ERROR_CONNECTION_TIMEOUT_AFTER_RETRIES, "Segment connection timed out");
+                    return false;
+                } catch (IOException e) {
+                    setRetryError(DownloadManager.ERROR_HTTP_DATA_ERROR, "IOException: Failed reading response");
+                    return false;
+                }
+                if (bytesRead == -1) {
+                    setRetryError(DownloadManager.ERROR_HTTP_DATA_ERROR, "Segment ended before its range was complete");
+                    return false;
+                }
+                long started = System.nanoTime();
+                try {
+                    out.write(data, 0, bytesRead);
+                } catch (IOException e) {
+                    mTransfer.fail(DownloadManager.ERROR_FILE_ERROR, "IOException when writing download contents to the destination file");
+                    return true;
+                }
+                mTransfer.mRequest.getMetrics().onDiskWrite(System.nanoTime() - started);
+                mWritten += bytesRead;
+                remaining -= bytesRead;
+                mTransfer.onBytesWritten(bytesRead);
+                throttle(mTransfer.mRequest, bytesRead);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of bytes read, -1 when the stream had ended or {@link Integer#MIN_VALUE}
+     * when reading failed.
+     */
+    private int readFromResponse(DownloadRequest request, byte[] data, InputStream entityStream) {
+        try {
+            return entityStream.read(data);
+        } catch (IOException ex) {
+            if ("unexpected end of stream".equals(ex.getMessage())) {
+                return -1;
+            }
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    private boolean writeDataToDestination(DownloadRequest request, byte[] data, int bytesRead, RandomAccessFile out) {
+        boolean successInWritingToDestination = true;
+        long started = System.nanoTime();
+        try {
+            out.write(data, 0, bytesRead);
+            request.getMetrics().onDiskWrite(System.nanoTime() - started);
+        } catch (IOException ex) {
+            updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR, "IOException when writing download contents to the destination file");
+            successInWritingToDestination = false;
+        } catch (Exception e) {
+            updateDownloadFailed(request, DownloadManager.ERROR_FILE_ERROR, "Exception when writing download contents to the destination file");
+            successInWritingToDestination = false;
+        }
+
+        return successInWritingToDestination;
+    }
+
+    private int readResponseHeaders(DownloadRequest request, HttpStack.Response response, int responseCode) {
+        final String transferEncoding = response.getHeaderField("Transfer-Encoding");
+        mContentLength = -1;
+
+        request.setValidators(response.getHeaderField("ETag"), response.getHeaderField("Last-Modified"));
+        if (request.isResumable() && !request.hasDestinationSink()) {
+            ResumeMetadata.save(request);
+        }
+
+        if (transferEncoding == null) {
+            if (responseCode == HTTP_OK) {
+                // If file download already completed, 200 HttpStatusCode will thrown by service.
+                mContentLength = getHeaderFieldLong(response, "Content-Length", -1);
+            } else {
+                // If file download already partially completed, 206 HttpStatusCode will thrown by service and we can resume remaining chunks downloads.
+                mContentLength = getHeaderFieldLong(response, "Content-Length", -1) + mDownloadedCacheSize;
+            }
+        } else {
+            Log.v("Ignoring Content-Length since Transfer-Encoding is also defined for Downloaded Id " + request.getDownloadId());
+        }
+
+        if (mContentLength != -1) {
+            return 1;
+        } else if (transferEncoding == null || !transferEncoding.equalsIgnoreCase("chunked")) {
+            return -1;
+        } else {
+            return 1;
+        }
+    }
+
+    private long getHeaderFieldLong(HttpStack.Response response, String field, long defaultValue) {
+        try {
+            return Long.parseLong(response.getHeaderField(field));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reconnects a response that broke off mid-transfer, as long as the request's retry policy
+     * allows. The retry asks for the range after the committed bytes, If-Range keeps it from
+     * continuing on a changed resource.
+     */
+    private void resumeAfterReadError(DownloadRequest request, long committedBytes) {
+        RetryPolicy retryPolicy = request.getRetryPolicy();
+        try {
+            retryPolicy.retry();
+        } catch (RetryError e) {
+            updateDownloadFailed(request, DownloadManager.ERROR_HTTP_DATA_ERROR, "IOException: Failed reading response");
+            return;
+        }
+        request.getMetrics().onRetry();
+        Log.v("Response broke off after " + committedBytes + " bytes for Download Id " + request.getDownloadId());
+        request.setResumeOffset(committedBytes);
+        updateDownloadState(request, DownloadManager.STATUS_RETRYING);
+        releaseSlot(request);
+        mRequestQueue.scheduleRetry(request, retryPolicy.getCurrentRetryCount());
+    }
+
+    /**
+     * Hands the request back to the queue, which re-inserts it once its backoff has passed. The
+     * dispatcher is free for other requests in the meantime.
+     */
+    private void attemptRetryOnTimeOutException(final DownloadRequest request) {
+        updateDownloadState(request, DownloadManager.STATUS_RETRYING);
+        // Stop any redirect loop further up the stack, the retry starts over from the request uri.
+        shouldAllowRedirects = false;
+        final RetryPolicy retryPolicy = request.getRetryPolicy();
+        try {
+            retryPolicy.retry();
+            request.getMetrics().onRetry();
+            releaseSlot(request);
+            mRequestQueue.scheduleRetry(request, retryPolicy.getCurrentRetryCount());
+        } catch (RetryError e) {
+            // Update download failed.
+            updateDownloadFailed(request, DownloadManager.ERROR_CONNECTION_TIMEOUT_AFTER_RETRIES,
+                    "Connection time out after maximum retires attempted");
+        }
+    }
+
+    /**
+     * Called just before the thread finishes, regardless of status, to take any necessary action on
+     * the downloaded file with mDownloadedCacheSize file.
+     *
+     * @param forceClean -  It will delete downloaded cache, Even streaming is enabled, If user intentionally cancelled.
+     */
+    private void cleanupDestination(DownloadRequest request, boolean forceClean) {
+        if (request.hasDestinationSink()) {
+            return;
+        }
+        if (!request.isResumable() || forceClean) {
+            Log.d("cleanupDestination() deleting " + request.getDestinationURI().getPath());
+            File destinationFile = new File(request.getDestinationURI().getPath());
+            if (destinationFile.exists()) {
+                destinationFile.delete();
+            }
+            ResumeMetadata.delete(request);
+        }
+    }
+
+    /**
+     * Returns whether the volume of the destination has room for the given number of bytes. An
+     * unknown length always fits.
+     */
+    private boolean hasUsableSpace(DownloadRequest request, long bytes) {
+        if (bytes <= 0) {
+            return true;
+        }
+        // The destination and its parents may not exist yet, ask the nearest existing directory.
+        File directory = new File(request.getDestinationURI().getPath()).getAbsoluteFile();
+        while (directory != null && !directory.exists()) {
+            directory = directory.getParentFile();
+        }
+        if (directory == null) {
+            return true;
+        }
+        long usableSpace = directory.getUsableSpace();
+        Log.v("Usable space " + usableSpace + " for " + bytes + " bytes of Download Id " + request.getDownloadId());
+        return usableSpace >= bytes;
+    }
+
+    /**
+     * Extends the destination to the content length before any data is written, when the queue
+     * asks for it. On API 21 and up the blocks are allocated with posix_fallocate, which also
+     * detects a full volume before the download starts; older releases and file systems without
+     * fallocate only get the length set. For a resumable request the valid length is stored in
+     * its resume metadata first, a later attempt resumes from there rather than from the file
+     * length, or from the last journal checkpoint once the journal restored the request.
+     *
+     * @param offset - bytes already in the file
+     * @return false if the volume is out of space, the failure has been posted
+     */
+    private boolean preallocate(DownloadRequest request, RandomAccessFile accessFile, long offset) {
+        mPreallocated = false;
+        if (!mRequestQueue.isPreallocationEnabled() || mContentLength <= offset) {
+            return true;
+        }
+        if (request.isResumable()) {
+            // From here on the file length no longer tells how much was downloaded. The journal
+            // already checkpointed the offset when the transfer started.
+            ResumeMetadata.save(request, offset);
+        }
+        try {
+            int result = Fallocate.NOT_SUPPORTED;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                result = Fallocate.allocate(accessFile.getFD(), offset, mContentLength - offset);
+            }
+            if (result == Fallocate.NO_SPACE) {
+                updateDownloadFailed(request, DownloadManager.ERROR_INSUFFICIENT_SPACE,
+                        "Not enough free space to preallocate " + mContentLength + " bytes");
+                return false;
+            }
+            if (result == Fallocate.NOT_SUPPORTED) {
+                accessFile.setLength(mContentLength);
+            } else {
+                mQueue.onAllocated(request);
+            }
+            mPreallocated = true;
+        } catch (IOException e) {
+            // Not fatal, the file just grows while it is written.
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /**
+     * Cuts a preallocated destination back to the bytes actually written, so an early stop leaves
+     * a valid partial file for resuming.
+     */
+    private void releasePreallocation(DownloadRequest request, FileChannel out, long committedBytes) {
+        if (!mPreallocated) {
+            return;
+        }
+        mPreallocated = false;
+        try {
+            out.truncate(committedBytes);
+            if (request.isResumable()) {
+                // The file length is accurate again.
+                ResumeMetadata.save(request);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns how many bytes of an existing destination are valid for a resume. A file that was
+     * preallocated when the process stopped is cut back to the length stored before it grew.
+     */
+    private long getCommittedLength(DownloadRequest request, File destinationFile) {
+        long length = destinationFile.length();
+        long committed = ResumeMetadata.loadCommitted(request);
+        if (committed < 0 || committed >= length) {
+            return length;
+        }
+        Log.v("Cutting preallocated file back to " + committed + " bytes for Download Id " + request.getDownloadId());
+        RandomAccessFile accessFile = null;
+        try {
+            accessFile = new RandomAccessFile(destinationFile, "rw");
+            accessFile.setLength(committed);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (accessFile != null) accessFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return committed;
+    }
+
+    /**
+     * Calls to posix_fallocate, kept in their own class so older releases never load them.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static class Fallocate {
+
+        static final int ALLOCATED = 0;
+        static final int NOT_SUPPORTED = 1;
+        static final int NO_SPACE = 2;
+
+        static int allocate(FileDescriptor fd, long offset, long length) {
+            try {
+                Os.posix_fallocate(fd, offset, length);
+                return ALLOCATED;
+            } catch (ErrnoException e) {
+                return e.errno == OsConstants.ENOSPC ? NO_SPACE : NOT_SUPPORTED;
+            }
+        }
+    }
+
+    /**
+     * Records the committed length in the download journal, if there is one.
+     */
+    private void checkpoint(DownloadRequest request, long bytesCommitted) {
+        DownloadJournal journal = mRequestQueue.getJournal();
+        if (journal != null) {
+            journal.checkpoint(request, bytesCommitted);
+        }
+    }
+
+    /**
+     * Records the offset a transfer starts writing at, which is below the last checkpoint when
+     * the download starts over.
+     */
+    private void checkpointStart(DownloadRequest request, long offset) {
+        DownloadJournal journal = mRequestQueue.getJournal();
+        if (journal != null) {
+            journal.checkpointNow(request, offset);
+        }
+    }
+
+    /**
+     * Counts the given bytes for the queue's throughput and the request's metrics, and waits as long
+     * as the queue and request bandwidth limits require for them. The wait is sliced so a cancelled
+     * request doesn't sit out a long delay.
+     */
+    private void throttle(DownloadRequest request, int bytes) {
+        mRequestQueue.onBytesTransferred(bytes);
+        request.getMetrics().onBytesTransferred(bytes);
+        long waitNanos = mRequestQueue.getRateLimiter().reserve(bytes);
+        RateLimiter requestLimiter = request.getRateLimiter();
+        if (requestLimiter != null) {
+            waitNanos = Math.max(waitNanos, requestLimiter.reserve(bytes));
+        }
+        if (waitNanos <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + waitNanos;
+        try {
+            long remaining;
+            while (!request.isCancelled() && (remaining = deadline - System.nanoTime()) > 0) {
+                Thread.sleep(Math.min(THROTTLE_SLICE_MS, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void updateDownloadState(DownloadRequest request, int state) {
+        request.setDownloadState(state);
     }
 
     private void updateDownloadComplete(DownloadRequest request) {
+        request.setResumeOffset(0);
+        if (request.getChecksumType() != null && !verifyChecksum(request)) {
+            // A resume would only append to the corrupt file, drop it whatever the request says.
+            cleanupDestination(request, true);
+            updateDownloadFailed(request, DownloadManager.ERROR_CHECKSUM_MISMATCH, "Downloaded file doesn't match the expected checksum");
+            return;
+        }
         mDownloadedCacheSize = 0; // reset into Zero.
+        if (!request.hasDestinationSink()) {
+            ResumeMetadata.delete(request);
+        }
         mDelivery.postDownloadComplete(request);
         request.setDownloadState(DownloadManager.STATUS_SUCCESSFUL);
         request.finish();
     }
 
     private void updateDownloadFailed(DownloadRequest request, int errorCode, String errorMsg) {
+        request.setResumeOffset(0);
         mDownloadedCacheSize = 0; // reset into Zero.
         shouldAllowRedirects = false;
         request.setDownloadState(DownloadManager.STATUS_FAILED);
@@ -0,0 +1,132 @@
+package com.thin.downloadmanager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Handle of requests added together through
+ * {@link ThinDownloadManager#addAll(Collection, DownloadGroupListener)}. Tracks the aggregate
+ * progress of its downloads and reports once when all of them are done.
+ */
+public class DownloadGroup {
+
+    private final int mGroupId;
+
+    private final List<DownloadRequest> mRequests;
+
+    private final DownloadGroupListener mListener;
+
+    private final DownloadRequestQueue mRequestQueue;
+
+    /** Latest known size and progress per download, in the order of {@link #mRequests}. */
+    private final long[] mTotalBytes;
+    private final long[] mDownloadedBytes;
+    private final boolean[] mFinished;
+
+    private long mGroupTotalBytes;
+    private long mGroupDownloadedBytes;
+    private int mSuccessful;
+    private int mFailed;
+
+    DownloadGroup(int groupId, Collection<DownloadRequest> requests, DownloadGroupListener listener,
+                  DownloadRequestQueue requestQueue) {
+        mGroupId = groupId;
+        mRequests = Collections.unmodifiableList(new ArrayList<>(requests));
+        mListener = listener;
+        mRequestQueue = requestQueue;
+        mTotalBytes = new long[mRequests.size()];
+        mDownloadedBytes = new long[mRequests.size()];
+        mFinished = new boolean[mRequests.size()];
+    }
+
+    public int getGroupId() {
+        return mGroupId;
+    }
+
+    public List<DownloadRequest> getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * Sum of the sizes known so far, downloads whose size isn't known yet don't count.
+     */
+    public synchronized long getTotalBytes() {
+        return mGroupTotalBytes;
+    }
+
+    public synchronized long getDownloadedBytes() {
+        return mGroupDownloadedBytes;
+    }
+
+    public synchronized int getSuccessfulCount() {
+        return mSuccessful;
+    }
+
+    public synchronized int getFailedCount() {
+        return mFailed;
+    }
+
+    public synchronized boolean isFinished() {
+        return mSuccessful + mFailed == mRequests.size();
+    }
+
+    /**
+     * Cancels every download of the group, see {@link ThinDownloadManager#cancelGroup(int)}.
+     */
+    public void cancel() {
+        mRequestQueue.cancelGroup(mGroupId);
+    }
+
+    void onProgress(int index, long totalBytes, long downloadedBytes) {
+        long groupTotalBytes;
+        long groupDownloadedBytes;
+        synchronized (this) {
+            if (mFinished[index]) {
+                return;
+            }
+            setProgress(index, totalBytes, downloadedBytes);
+            groupTotalBytes = mGroupTotalBytes;
+            groupDownloadedBytes = mGroupDownloadedBytes;
+        }
+        if (mListener != null) {
+            mListener.onGroupProgress(this, groupTotalBytes, groupDownloadedBytes);
+        }
+    }
+
+    void onFinished(int index, boolean successful) {
+        int successfulCount;
+        int failedCount;
+        synchronized (this) {
+            if (mFinished[index]) {
+                return;
+            }
+            mFinished[index] = true;
+            if (successful) {
+                // Count the whole download even if the last progress update was filtered out.
+                setProgress(index, mTotalBytes[index], Math.max(mTotalBytes[index], mDownloadedBytes[index]));
+                mSuccessful++;
+            } else {
+                mFailed++;
+            }
+            if (mSuccessful + mFailed < mRequests.size()) {
+                return;
+            }
+            successfulCount = mSuccessful;
+            failedCount = mFailed;
+        }
+        mRequestQueue.removeGroup(this);
+        if (mListener != null) {
+            mListener.onGroupComplete(this, successfulCount, failedCount);
+        }
+    }
+
+    private void setProgress(int index, long totalBytes, long downloadedBytes) {
+        long knownTotalBytes = Math.max(totalBytes, 0);
+        mGroupTotalBytes += knownTotalBytes - mTotalBytes[index];
+        mGroupDownloadedBytes += downloadedBytes - mDownloadedBytes[index];
+        mTotalBytes[index] = knownTotalBytes;
+        mDownloadedBytes[index] = downloadedBytes;
+    }
+}
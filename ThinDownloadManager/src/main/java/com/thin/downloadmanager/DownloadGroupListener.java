@@ -0,0 +1,26 @@
+package com.thin.downloadmanager;
+
+/**
+ * A Listener for the status of a {@link DownloadGroup} as a whole. Called on the same thread as
+ * the listeners of the single downloads, after them.
+ */
+public interface DownloadGroupListener {
+
+    /**
+     * This method is invoked when a download of the group made progress.
+     *
+     * @param group             the download group
+     * @param totalBytes        sum of the sizes known so far, downloads of unknown size don't count
+     * @param downloadedBytes   bytes downloaded till now by all the downloads of the group
+     */
+    void onGroupProgress(DownloadGroup group, long totalBytes, long downloadedBytes);
+
+    /**
+     * This method is invoked once, when every download of the group has completed or failed.
+     *
+     * @param group             the download group
+     * @param successful        number of completed downloads
+     * @param failed            number of failed or cancelled downloads
+     */
+    void onGroupComplete(DownloadGroup group, int successful, int failed);
+}
@@ -0,0 +1,291 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import com.thin.downloadmanager.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * On-disk record of the requests of a {@link DownloadRequestQueue}, so pending and in-flight
+ * downloads survive the death of the process. Every request gets its own small entry file which
+ * is rewritten through a temporary file and a rename, so an entry is either the old or the new
+ * version but never half written. Entries are checkpointed while data is transferred and removed
+ * once the request finishes. The first version of an entry is written on a background executor,
+ * so adding requests from the main thread doesn't wait for the disk.
+ */
+class DownloadJournal {
+
+    /** Minimum time between two checkpoints of the same request. */
+    static final long CHECKPOINT_INTERVAL_MS = 1000;
+
+    private static final String ENTRY_SUFFIX = ".journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String HEADER_PREFIX = "header.";
+
+    private static final String KEY_URI = "uri";
+    private static final String KEY_DESTINATION = "destination";
+    private static final String KEY_PRIORITY = "priority";
+    private static final String KEY_SEGMENT_COUNT = "segmentCount";
+    private static final String KEY_MIN_SEGMENT_SIZE = "minSegmentSize";
+    private static final String KEY_MAX_BYTES_PER_SECOND = "maxBytesPerSecond";
+    private static final String KEY_BYTES_COMMITTED = "bytesCommitted";
+    private static final String KEY_CHECKSUM_TYPE = "checksumType";
+    private static final String KEY_CHECKSUM = "checksum";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+
+    private final File mDirectory;
+
+    private final long mCheckpointIntervalNanos;
+
+    /** Striped locks serializing the writes and the removal of an entry. */
+    private final Object[] mLocks = new Object[16];
+
+    /** Committed length last written to each entry, guarded by the lock of its key. */
+    private final ConcurrentHashMap<String, Long> mCommitted = new ConcurrentHashMap<>();
+
+    DownloadJournal(File directory) {
+        this(directory, CHECKPOINT_INTERVAL_MS);
+    }
+
+    DownloadJournal(File directory, long checkpointIntervalMs) {
+        mCheckpointIntervalNanos = checkpointIntervalMs * 1000000L;
+        for (int i = 0; i < mLocks.length; i++) {
+            mLocks[i] = new Object();
+        }
+        mDirectory = directory;
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Adds a new entry for a request just added to the queue. Only the entry name is assigned on
+     * the calling thread, the entry itself is written by the executor. A checkpoint written before
+     * the executor gets to it is newer and is kept.
+     */
+    void record(final DownloadRequest request, Executor executor) {
+        if (request.getDestinationURI() == null || request.hasDestinationSink()) {
+            return;
+        }
+        final String key = UUID.randomUUID().toString();
+        request.setJournalKey(key);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (getLock(key)) {
+                        if (!key.equals(request.getJournalKey()) || mCommitted.containsKey(key)) {
+                            return;
+                        }
+                        // A resumable request continues from whatever is already on disk.
+                        File destinationFile = new File(request.getDestinationURI().getPath());
+                        write(request, key, request.isResumable() ? destinationFile.length() : 0);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The queue is being released.
+            Log.v("Not journaling Download Id " + request.getDownloadId());
+        }
+    }
+
+    /**
+     * Records how many bytes of the destination file are known to be valid. Calls coming sooner
+     * than the checkpoint interval after the previous checkpoint are ignored, and so are
+     * calls with a length not beyond the recorded one, which a slower segment thread may still make
+     * after a faster one wrote a newer checkpoint.
+     */
+    void checkpoint(DownloadRequest request, long bytesCommitted) {
+        String key = request.getJournalKey();
+        if (key == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - request.getJournalCheckpointNanos() < mCheckpointIntervalNanos) {
+            return;
+        }
+        request.setJournalCheckpointNanos(now);
+        synchronized (getLock(key)) {
+            Long recorded = mCommitted.get(key);
+            if (key.equals(request.getJournalKey()) && (recorded == null || bytesCommitted > recorded)) {
+                write(request, key, bytesCommitted);
+            }
+        }
+    }
+
+    /**
+     * Records the committed length right away, even if it is below the recorded one. Called when
+     * a transfer starts, which may be over from a smaller offset than the last checkpoint.
+     */
+    void checkpointNow(DownloadRequest request, long bytesCommitted) {
+        String key = request.getJournalKey();
+        if (key == null) {
+            return;
+        }
+        request.setJournalCheckpointNanos(System.nanoTime());
+        synchronized (getLock(key)) {
+            if (key.equals(request.getJournalKey())) {
+                write(request, key, bytesCommitted);
+            }
+        }
+    }
+
+    void remove(DownloadRequest request) {
+        String key = request.getJournalKey();
+        if (key != null) {
+            synchronized (getLock(key)) {
+                request.setJournalKey(null);
+                mCommitted.remove(key);
+                new File(mDirectory, key + ENTRY_SUFFIX).delete();
+            }
+        }
+    }
+
+    private Object getLock(String key) {
+        return mLocks[(key.hashCode() & 0x7fffffff) % mLocks.length];
+    }
+
+    /**
+     * Reads back every entry left by a previous process and deletes it. The destination files
+     * are cut back to the last checkpoint so the restored requests resume from valid data.
+     *
+     * @return the restored requests, marked resumable and not yet added to any queue
+     */
+    List<DownloadRequest> restore() {
+        List<DownloadRequest> requests = new ArrayList<>();
+        File[] entries = mDirectory.listFiles();
+        if (entries == null) {
+            return requests;
+        }
+        for (File entry : entries) {
+            if (!entry.getName().endsWith(ENTRY_SUFFIX)) {
+                if (entry.getName().endsWith(TEMP_SUFFIX)) {
+                    entry.delete();
+                }
+                continue;
+            }
+            try {
+                requests.add(read(entry));
+            } catch (Exception e) {
+                Log.e("ThinDownloadManager", "Discarding unreadable journal entry " + entry.getName(), e);
+            }
+            entry.delete();
+        }
+        return requests;
+    }
+
+    /**
+     * Replaces the entry, the caller holds the lock of the key.
+     */
+    private void write(DownloadRequest request, String key, long bytesCommitted) {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_URI, request.getUri().toString());
+        properties.setProperty(KEY_DESTINATION, request.getDestinationURI().toString());
+        properties.setProperty(KEY_PRIORITY, request.getPriority().name());
+        properties.setProperty(KEY_SEGMENT_COUNT, String.valueOf(request.getSegmentCount()));
+        properties.setProperty(KEY_MIN_SEGMENT_SIZE, String.valueOf(request.getMinSegmentSize()));
+        properties.setProperty(KEY_MAX_BYTES_PER_SECOND, String.valueOf(request.getMaxBytesPerSecond()));
+        properties.setProperty(KEY_BYTES_COMMITTED, String.valueOf(bytesCommitted));
+        if (request.getChecksumType() != null) {
+            properties.setProperty(KEY_CHECKSUM_TYPE, request.getChecksumType().name());
+            properties.setProperty(KEY_CHECKSUM, request.getExpectedChecksum());
+        }
+        if (request.getETag() != null) {
+            properties.setProperty(KEY_ETAG, request.getETag());
+        }
+        if (request.getLastModified() != null) {
+            properties.setProperty(KEY_LAST_MODIFIED, request.getLastModified());
+        }
+        for (Map.Entry<String, String> header : request.getCustomHeaders().entrySet()) {
+            properties.setProperty(HEADER_PREFIX + header.getKey(), header.getValue());
+        }
+
+        File temp = new File(mDirectory, key + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            properties.store(out, null);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (temp.renameTo(new File(mDirectory, key + ENTRY_SUFFIX))) {
+                mCommitted.put(key, bytesCommitted);
+            } else {
+                Log.e("ThinDownloadManager", "Failed to commit journal entry for Download Id " + request.getDownloadId());
+            }
+        } catch (IOException e) {
+            Log.e("ThinDownloadManager", "Failed to write journal entry for Download Id " + request.getDownloadId(), e);
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private DownloadRequest read(File entry) throws IOException {
+        Properties properties = new Properties();
+        FileInputStream in = new FileInputStream(entry);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        DownloadRequest request = new DownloadRequest(Uri.parse(properties.getProperty(KEY_URI)))
+                .setDestinationURI(Uri.parse(properties.getProperty(KEY_DESTINATION)))
+                .setPriority(DownloadRequest.Priority.valueOf(properties.getProperty(KEY_PRIORITY)))
+                .setSegmentCount(Integer.parseInt(properties.getProperty(KEY_SEGMENT_COUNT)))
+                .setMinSegmentSize(Long.parseLong(properties.getProperty(KEY_MIN_SEGMENT_SIZE)))
+                .setDownloadResumable(true);
+        request.setValidators(properties.getProperty(KEY_ETAG), properties.getProperty(KEY_LAST_MODIFIED));
+        if (properties.getProperty(KEY_CHECKSUM_TYPE) != null) {
+            request.setExpectedChecksum(DownloadRequest.ChecksumType.valueOf(properties.getProperty(KEY_CHECKSUM_TYPE)),
+                    properties.getProperty(KEY_CHECKSUM));
+        }
+        long maxBytesPerSecond = Long.parseLong(properties.getProperty(KEY_MAX_BYTES_PER_SECOND));
+        if (maxBytesPerSecond > 0) {
+            request.setMaxBytesPerSecond(maxBytesPerSecond);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(HEADER_PREFIX)) {
+                request.addCustomHeader(name.substring(HEADER_PREFIX.length()), properties.getProperty(name));
+            }
+        }
+
+        long bytesCommitted = Long.parseLong(properties.getProperty(KEY_BYTES_COMMITTED));
+        File destinationFile = new File(request.getDestinationURI().getPath());
+        if (destinationFile.length() > bytesCommitted) {
+            RandomAccessFile accessFile = new RandomAccessFile(destinationFile, "rw");
+            try {
+                accessFile.setLength(bytesCommitted);
+            } finally {
+                accessFile.close();
+            }
+        }
+        if (ResumeMetadata.loadCommitted(request) >= 0) {
+            // The file was preallocated, the checkpoint is a better resume offset than the stored one.
+            ResumeMetadata.save(request, Math.min(destinationFile.length(), bytesCommitted));
+        }
+        return request;
+    }
+}
@@ -84,6 +84,16 @@ public interface DownloadManager {
 	 */
 	int ERROR_CONNECTION_TIMEOUT_AFTER_RETRIES = 1009;
 
+	/**
+	 * Error code when the downloaded file doesn't match the expected checksum
+	 */
+	int ERROR_CHECKSUM_MISMATCH = 1010;
+
+	/**
+	 * Error code when the destination volume doesn't have room for the download
+	 */
+	int ERROR_INSUFFICIENT_SPACE = 1011;
+
 	int add(DownloadRequest request);
 
 	int cancel(int downloadId);
@@ -0,0 +1,235 @@
+package com.thin.downloadmanager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and counters of one download, handed to the {@link DownloadMetricsListener} once the
+ * download has completed or failed. Times add up over all the attempts of the download.
+ */
+public class DownloadMetrics {
+
+    private static final long PEAK_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int mDownloadId;
+    private final String mUri;
+
+    private final long mAddedNanos = System.nanoTime();
+    private long mFinishedNanos;
+    private boolean mFinished;
+    private int mErrorCode;
+
+    private long mQueuedNanos;
+    private long mQueueWaitNanos;
+
+    private long mRequestStartedNanos;
+    private long mConnectNanos;
+    private long mTimeToFirstByteNanos = -1;
+    private boolean mAwaitingFirstByte;
+    private long mFirstByteNanos;
+
+    private long mDiskWriteNanos;
+    private long mBytes;
+
+    private long mWindowStartNanos;
+    private long mWindowBytes;
+    private long mPeakBytesPerSecond;
+
+    private int mRetryCount;
+    private int mRedirectCount;
+
+    DownloadMetrics(int downloadId, String uri) {
+        mDownloadId = downloadId;
+        mUri = uri;
+    }
+
+    public int getDownloadId() {
+        return mDownloadId;
+    }
+
+    public String getUri() {
+        return mUri;
+    }
+
+    /**
+     * Returns true if the download completed.
+     */
+    public synchronized boolean isSuccessful() {
+        return mFinished && mErrorCode == 0;
+    }
+
+    /**
+     * Returns the error code the download failed with, 0 if it completed.
+     */
+    public synchronized int getErrorCode() {
+        return mErrorCode;
+    }
+
+    /**
+     * Time from adding the download to its completion or failure.
+     */
+    public synchronized long getTotalMs() {
+        return toMs((mFinished ? mFinishedNanos : System.nanoTime()) - mAddedNanos);
+    }
+
+    /**
+     * Time spent waiting in the queue for a free dispatcher, including waits after retries.
+     */
+    public synchronized long getQueueWaitMs() {
+        return toMs(mQueueWaitNanos);
+    }
+
+    /**
+     * Time from sending a request to receiving its response headers, which includes DNS, TCP and
+     * TLS when the connection is new.
+     */
+    public synchronized long getConnectMs() {
+        return toMs(mConnectNanos);
+    }
+
+    /**
+     * Time from sending the request to the first byte of the body, -1 if no byte arrived.
+     */
+    public synchronized long getTimeToFirstByteMs() {
+        return mTimeToFirstByteNanos < 0 ? -1 : toMs(mTimeToFirstByteNanos);
+    }
+
+    /**
+     * Time from the first byte of the body to the end of the download.
+     */
+    public synchronized long getTransferMs() {
+        if (mFirstByteNanos == 0) {
+            return 0;
+        }
+        return toMs((mFinished ? mFinishedNanos : System.nanoTime()) - mFirstByteNanos);
+    }
+
+    /**
+     * Time spent writing to the destination file or sink.
+     */
+    public synchronized long getDiskWriteMs() {
+        return toMs(mDiskWriteNanos);
+    }
+
+    /**
+     * Body bytes received over all the attempts.
+     */
+    public synchronized long getBytesTransferred() {
+        return mBytes;
+    }
+
+    /**
+     * Throughput from the first byte of the body to the end of the download.
+     */
+    public synchronized long getAverageBytesPerSecond() {
+        long transferNanos = (mFinished ? mFinishedNanos : System.nanoTime()) - mFirstByteNanos;
+        if (mFirstByteNanos == 0 || transferNanos <= 0) {
+            return 0;
+        }
+        return (long) (mBytes * 1000000000.0 / transferNanos);
+    }
+
+    /**
+     * Highest throughput over one second, the average for downloads shorter than that.
+     */
+    public synchronized long getPeakBytesPerSecond() {
+        return Math.max(mPeakBytesPerSecond, getAverageBytesPerSecond());
+    }
+
+    public synchronized int getRetryCount() {
+        return mRetryCount;
+    }
+
+    public synchronized int getRedirectCount() {
+        return mRedirectCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DownloadMetrics{id=" + mDownloadId
+                + ", errorCode=" + mErrorCode
+                + ", totalMs=" + getTotalMs()
+                + ", queueWaitMs=" + getQueueWaitMs()
+                + ", connectMs=" + getConnectMs()
+                + ", timeToFirstByteMs=" + getTimeToFirstByteMs()
+                + ", transferMs=" + getTransferMs()
+                + ", diskWriteMs=" + getDiskWriteMs()
+                + ", bytes=" + mBytes
+                + ", avgBytesPerSecond=" + getAverageBytesPerSecond()
+                + ", peakBytesPerSecond=" + getPeakBytesPerSecond()
+                + ", retries=" + mRetryCount
+                + ", redirects=" + mRedirectCount
+                + "}";
+    }
+
+    synchronized void onQueued() {
+        mQueuedNanos = System.nanoTime();
+    }
+
+    synchronized void onDequeued() {
+        if (mQueuedNanos != 0) {
+            mQueueWaitNanos += System.nanoTime() - mQueuedNanos;
+            mQueuedNanos = 0;
+        }
+    }
+
+    synchronized void onRequestStarted() {
+        mRequestStartedNanos = System.nanoTime();
+    }
+
+    synchronized void onResponseHeaders() {
+        long now = System.nanoTime();
+        mConnectNanos += now - mRequestStartedNanos;
+        mAwaitingFirstByte = mTimeToFirstByteNanos < 0;
+    }
+
+    synchronized void onBytesTransferred(int bytes) {
+        long now = System.nanoTime();
+        if (mAwaitingFirstByte) {
+            mAwaitingFirstByte = false;
+            mTimeToFirstByteNanos = now - mRequestStartedNanos;
+        }
+        if (mFirstByteNanos == 0) {
+            mFirstByteNanos = now;
+            mWindowStartNanos = now;
+        }
+        mBytes += bytes;
+        mWindowBytes += bytes;
+        long window = now - mWindowStartNanos;
+        if (window >= PEAK_WINDOW_NANOS) {
+            mPeakBytesPerSecond = Math.max(mPeakBytesPerSecond, (long) (mWindowBytes * 1000000000.0 / window));
+            mWindowStartNanos = now;
+            mWindowBytes = 0;
+        }
+    }
+
+    synchronized void onDiskWrite(long nanos) {
+        mDiskWriteNanos += nanos;
+    }
+
+    synchronized void onRetry() {
+        mRetryCount++;
+    }
+
+    synchronized void onRedirect() {
+        mRedirectCount++;
+    }
+
+    /**
+     * Records the outcome, only the first call counts.
+     *
+     * @return true if this call finished the metrics
+     */
+    synchronized boolean onFinished(int errorCode) {
+        if (mFinished) {
+            return false;
+        }
+        mFinished = true;
+        mFinishedNanos = System.nanoTime();
+        mErrorCode = errorCode;
+        return true;
+    }
+
+    private static long toMs(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -0,0 +1,15 @@
+package com.thin.downloadmanager;
+
+/**
+ * Receives the {@link DownloadMetrics} of every download once it has completed or failed. Called on
+ * the download thread, so implementations must be quick and thread safe.
+ */
+public interface DownloadMetricsListener {
+
+    /**
+     * This method is invoked when a download has completed or failed.
+     *
+     * @param metrics   timings and counters of the download
+     */
+    void onDownloadMetrics(DownloadMetrics metrics);
+}
@@ -2,7 +2,13 @@ package com.thin.downloadmanager;
 
 import android.net.Uri;
 
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This class used to handle user requests and provides priorities to the request even there may be 'n' number of request raised.
@@ -25,6 +31,26 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
         IMMEDIATE
     }
 
+    /**
+     * Checksum algorithms available to verify a download.
+     */
+    public enum ChecksumType {
+        MD5("MD5"),
+        SHA1("SHA-1"),
+        SHA256("SHA-256"),
+        CRC32("CRC32");
+
+        private final String mAlgorithm;
+
+        ChecksumType(String algorithm) {
+            mAlgorithm = algorithm;
+        }
+
+        String getAlgorithm() {
+            return mAlgorithm;
+        }
+    }
+
     /**
      * Tells the current download state of this request
      */
@@ -49,6 +75,13 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
      */
     private Uri mDestinationURI;
 
+    /**
+     * Receive the downloaded bytes instead of a destination file, at most one of them is set.
+     */
+    private OutputStream mDestinationStream;
+
+    private WritableByteChannel mDestinationChannel;
+
     private RetryPolicy mRetryPolicy;
 
     /**
@@ -71,6 +104,81 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 
     private boolean isDownloadResumable = false;
 
+    /**
+     * Default smallest byte range worth opening a connection of its own for a segmented download.
+     */
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * Number of parallel byte range connections used to fetch this request, 1 means a single connection.
+     */
+    private int mSegmentCount = 1;
+
+    private long mMinSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+
+    /**
+     * Bandwidth cap of this request, null when it is not limited.
+     */
+    private volatile RateLimiter mRateLimiter;
+
+    /**
+     * Checksum the downloaded file must match, null when it isn't verified.
+     */
+    private ChecksumType mChecksumType;
+
+    private String mExpectedChecksum;
+
+    /**
+     * Running checksum of the bytes written so far, kept across retries of this request.
+     */
+    private DownloadDigest mDigest;
+
+    /**
+     * Offset the next attempt continues from after a response broke off, 0 to start as usual.
+     */
+    private long mResumeOffset;
+
+    /**
+     * Timings and counters of the current run of this request, created when it is added to a queue.
+     */
+    private volatile DownloadMetrics mMetrics;
+
+    /**
+     * Validators of the response being downloaded, used for If-Range on resume.
+     */
+    private String mETag;
+
+    private String mLastModified;
+
+    /**
+     * Name of the journal entry of this request, null while it isn't journaled.
+     */
+    private volatile String mJournalKey;
+
+    private volatile long mJournalCheckpointNanos;
+
+    /**
+     * Duplicate requests attached to this one, they get the same callbacks. Null until the first one is attached.
+     */
+    private CopyOnWriteArrayList<DownloadRequest> mFollowers;
+
+    /**
+     * Set once the final callback is posted, no request can be attached anymore.
+     */
+    private boolean mFollowersClosed = false;
+
+    /**
+     * Coalesces the progress callbacks of this request.
+     */
+    private final ProgressUpdate mProgressUpdate = new ProgressUpdate(this);
+
+    /**
+     * Group this request was added with and its position in it, null when added on its own.
+     */
+    private DownloadGroup mGroup;
+
+    private int mGroupIndex;
+
     public DownloadRequest(Uri uri) {
         if (uri == null) {
             throw new NullPointerException();
@@ -217,6 +325,52 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
         return this;
     }
 
+    /**
+     * Streams the downloaded bytes to the given stream instead of a destination file, e.g. straight
+     * into a parser or a {@link java.io.ByteArrayOutputStream}. Nothing is written to disk, so the
+     * download can't be resumed or split into segments. The stream is flushed when the download
+     * completes but never closed by the download manager. A failed write is reported as
+     * {@link DownloadManager#ERROR_FILE_ERROR}. A response that ends short of its Content-Length
+     * fails with {@link DownloadManager#ERROR_HTTP_DATA_ERROR}, part of it already reached the
+     * stream by then.
+     *
+     * @param destinationStream - stream receiving the response body
+     * @return - current {@link DownloadRequest}
+     */
+    public DownloadRequest setDestinationStream(OutputStream destinationStream) {
+        mDestinationStream = destinationStream;
+        mDestinationChannel = null;
+        return this;
+    }
+
+    public OutputStream getDestinationStream() {
+        return mDestinationStream;
+    }
+
+    /**
+     * Channel variant of {@link #setDestinationStream(OutputStream)}. The channel is never closed
+     * by the download manager.
+     *
+     * @param destinationChannel - channel receiving the response body
+     * @return - current {@link DownloadRequest}
+     */
+    public DownloadRequest setDestinationChannel(WritableByteChannel destinationChannel) {
+        mDestinationChannel = destinationChannel;
+        mDestinationStream = null;
+        return this;
+    }
+
+    public WritableByteChannel getDestinationChannel() {
+        return mDestinationChannel;
+    }
+
+    /**
+     * Whether the bytes go to a stream or channel rather than the destination file.
+     */
+    boolean hasDestinationSink() {
+        return mDestinationStream != null || mDestinationChannel != null;
+    }
+
     public boolean getDeleteDestinationFileOnFailure() {
         return mDeleteDestinationFileOnFailure;
     }
@@ -235,6 +389,46 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
     public boolean isResumable() {
         return isDownloadResumable;
     }
+
+    /**
+     * Splits the download into the given number of byte ranges which are fetched in parallel over
+     * separate connections and written at their offsets in the destination file. It is an optional
+     * feature and only kicks in when the server honours range requests and the size is known.
+     *
+     * @param segmentCount - maximum number of parallel connections, 1 disables segmenting
+     * @return - current {@link DownloadRequest}
+     */
+    public DownloadRequest setSegmentCount(int segmentCount) {
+        if (segmentCount < 1) {
+            throw new IllegalArgumentException("segmentCount must be at least 1");
+        }
+        this.mSegmentCount = segmentCount;
+        return this;
+    }
+
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    /**
+     * Set the smallest byte range a segment may have, fewer segments are used for smaller files.
+     * Default is {@link #DEFAULT_MIN_SEGMENT_SIZE}.
+     *
+     * @param minSegmentSize - minimum segment size in bytes
+     * @return - current {@link DownloadRequest}
+     */
+    public DownloadRequest setMinSegmentSize(long minSegmentSize) {
+        if (minSegmentSize < 1) {
+            throw new IllegalArgumentException("minSegmentSize must be positive");
+        }
+        this.mMinSegmentSize = minSegmentSize;
+        return this;
+    }
+
+    public long getMinSegmentSize() {
+        return mMinSegmentSize;
+    }
+
     /**
      * Set if destination file should be deleted on download failure.
      * Use is optional: default is to delete.
@@ -269,6 +463,154 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
         mCancelled = false;
     }
 
+    /**
+     * Verifies the downloaded file against the given checksum. The checksum is computed while the
+     * data is written, a mismatch fails the download with {@link DownloadManager#ERROR_CHECKSUM_MISMATCH}
+     * and deletes the file.
+     *
+     * @param type - checksum algorithm
+     * @param expectedChecksum - expected checksum as hex string, case doesn't matter
+     * @return - current {@link DownloadRequest}
+     */
+    public DownloadRequest setExpectedChecksum(ChecksumType type, String expectedChecksum) {
+        if (type == null || expectedChecksum == null) {
+            throw new NullPointerException();
+        }
+        mChecksumType = type;
+        mExpectedChecksum = expectedChecksum.toLowerCase(Locale.US);
+        return this;
+    }
+
+    public ChecksumType getChecksumType() {
+        return mChecksumType;
+    }
+
+    public String getExpectedChecksum() {
+        return mExpectedChecksum;
+    }
+
+    long getResumeOffset() {
+        return mResumeOffset;
+    }
+
+    void setResumeOffset(long resumeOffset) {
+        mResumeOffset = resumeOffset;
+    }
+
+    /**
+     * Returns the metrics of this download so far, null if the request was never added
+     * to a queue or is attached to a duplicate download in flight.
+     */
+    public DownloadMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    void setMetrics(DownloadMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    DownloadDigest getDigest() {
+        return mDigest;
+    }
+
+    void setDigest(DownloadDigest digest) {
+        mDigest = digest;
+    }
+
+    /**
+     * Caps the bandwidth used by this download, on top of the limit set on the download manager.
+     * It can be changed while the download is running.
+     *
+     * @param maxBytesPerSecond - maximum bytes per second, 0 for no limit
+     * @return - current {@link DownloadRequest}
+     */
+    public DownloadRequest setMaxBytesPerSecond(long maxBytesPerSecond) {
+        if (maxBytesPerSecond < 0) {
+            throw new IllegalArgumentException("maxBytesPerSecond must not be negative");
+        }
+        synchronized (this) {
+            if (mRateLimiter == null) {
+                mRateLimiter = new RateLimiter(maxBytesPerSecond);
+            } else {
+                mRateLimiter.setBytesPerSecond(maxBytesPerSecond);
+            }
+        }
+        return this;
+    }
+
+    public long getMaxBytesPerSecond() {
+        RateLimiter rateLimiter = mRateLimiter;
+        return rateLimiter == null ? 0 : rateLimiter.getBytesPerSecond();
+    }
+
+    RateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * Attaches a duplicate request which will receive the callbacks of this request.
+     *
+     * @return false if this request is already done or cancelled
+     */
+    synchronized boolean attachFollower(DownloadRequest follower) {
+        if (mFollowersClosed || mCancelled) {
+            return false;
+        }
+        if (mFollowers == null) {
+            mFollowers = new CopyOnWriteArrayList<>();
+        }
+        mFollowers.add(follower);
+        return true;
+    }
+
+    /**
+     * Returns the attached duplicate requests.
+     */
+    synchronized List<DownloadRequest> getFollowers() {
+        return mFollowers == null ? Collections.<DownloadRequest>emptyList() : mFollowers;
+    }
+
+    /**
+     * Prevents further requests from being attached and returns the attached ones.
+     */
+    synchronized List<DownloadRequest> closeFollowers() {
+        mFollowersClosed = true;
+        return getFollowers();
+    }
+
+    String getETag() {
+        return mETag;
+    }
+
+    String getLastModified() {
+        return mLastModified;
+    }
+
+    void setValidators(String eTag, String lastModified) {
+        mETag = eTag;
+        mLastModified = lastModified;
+    }
+
+    String getJournalKey() {
+        return mJournalKey;
+    }
+
+    void setJournalKey(String journalKey) {
+        mJournalKey = journalKey;
+    }
+
+    long getJournalCheckpointNanos() {
+        return mJournalCheckpointNanos;
+    }
+
+    void setJournalCheckpointNanos(long journalCheckpointNanos) {
+        mJournalCheckpointNanos = journalCheckpointNanos;
+    }
+
+    ProgressUpdate getProgressUpdate() {
+        return mProgressUpdate;
+    }
+
     /**
      * Returns all custom headers set by user
      *
@@ -282,6 +624,19 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
         mRequestQueue.finish(this);
     }
 
+    DownloadGroup getGroup() {
+        return mGroup;
+    }
+
+    int getGroupIndex() {
+        return mGroupIndex;
+    }
+
+    void setGroup(DownloadGroup group, int index) {
+        mGroup = group;
+        mGroupIndex = index;
+    }
+
     @Override
     public int compareTo(DownloadRequest other) {
         Priority left = this.getPriority();
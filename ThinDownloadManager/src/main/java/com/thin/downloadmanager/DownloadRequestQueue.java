@@ -5,32 +5,121 @@ import android.os.Looper;
 
 import com.thin.downloadmanager.util.Log;
 
+import java.io.File;
 import java.security.InvalidParameterException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
-import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DownloadRequestQueue {
 
 	/**
-	 * The set of all requests currently being processed by this RequestQueue. A Request will be in this set if it is waiting in any queue or currently being processed by any dispatcher.
+	 * All requests currently being processed by this RequestQueue, indexed by download id. A Request will be in this map if it is waiting in any queue or currently being processed by any dispatcher.
 	 */
-	private Set<DownloadRequest> mCurrentRequests = new HashSet<>();
+	private volatile ConcurrentHashMap<Integer, DownloadRequest> mCurrentRequests = new ConcurrentHashMap<>();
+
+	/** Requests being downloaded, indexed by source and destination, used to coalesce duplicates. */
+	private final ConcurrentHashMap<String, DownloadRequest> mInFlightTargets = new ConcurrentHashMap<>();
+
+	/** Whether a request for a source and destination already in flight is attached to the running one. */
+	private volatile boolean mCoalesceDuplicates = false;
 
 	/** The queue of requests that are actually going out to the network. */
-	private PriorityBlockingQueue<DownloadRequest> mDownloadQueue = new PriorityBlockingQueue<>();
+	private DownloadScheduler mDownloadQueue = new DownloadScheduler();
 
 	/** The download dispatchers */
 	private DownloadDispatcher[] mDownloadDispatchers;
 
+	/** Runs the dispatchers, null to give each dispatcher a thread of its own. */
+	private Executor mDispatcherExecutor;
+
 	/** Used for generating monotonically-increasing sequence numbers for requests. */
 	private AtomicInteger mSequenceGenerator = new AtomicInteger();
 
+	/** Groups with downloads not finished yet, indexed by group id. */
+	private final ConcurrentHashMap<Integer, DownloadGroup> mGroups = new ConcurrentHashMap<>();
+
+	/** Used for generating group ids. */
+	private final AtomicInteger mGroupSequenceGenerator = new AtomicInteger();
+
 	private CallBackDelivery mDelivery;
 
+	/** Runs the extra segments of segmented downloads, the first one runs on its dispatcher. */
+	private ExecutorService mSegmentExecutor;
+
+	/** The default size of the buffer used to stream the data. */
+	public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+	/** Buffers the dispatchers read the response into before writing it to the destination. */
+	private BufferPool mBufferPool;
+
+	/** Bandwidth cap shared by all the downloads of this queue. */
+	private final RateLimiter mRateLimiter = new RateLimiter(0);
+
+	/** On-disk record of the requests, null when journaling is disabled. */
+	private volatile DownloadJournal mJournal;
+
+	/** Bytes received by all the downloads, sampled by the concurrency controller. */
+	private final AtomicLong mTransferredBytes = new AtomicLong();
+
+	/** Runs the disk writers of pipelined transfers, at most one per dispatcher. */
+	private ThreadPoolExecutor mWriterExecutor;
+
+	/** Timer thread shared by the background jobs of this queue, created on first use. */
+	private ScheduledExecutorService mScheduledExecutor;
+
+	/** Set by release(), no background job starts afterwards. Guarded by this queue's monitor. */
+	private boolean mReleased;
+
+	/** Requests waiting for their retry on the timer thread. Guarded by this queue's monitor. */
+	private final List<DownloadRequest> mPendingRetries = new ArrayList<>();
+
+	/** Delay before the first retry of a timed out request, doubled for every further retry. */
+	private volatile long mRetryInitialDelayMs = DEFAULT_RETRY_INITIAL_DELAY_MS;
+
+	/** Upper bound of the retry delay. */
+	private volatile long mRetryMaxDelayMs = DEFAULT_RETRY_MAX_DELAY_MS;
+
+	public static final long DEFAULT_RETRY_INITIAL_DELAY_MS = 1000;
+
+	public static final long DEFAULT_RETRY_MAX_DELAY_MS = 30 * 1000;
+
+	/** Spreads the retry delays so requests failing together don't retry together. */
+	private final Random mRetryJitter = new Random();
+
+	/** Periodic run of the adaptive concurrency controller, null when it is off. */
+	private ScheduledFuture<?> mConcurrencyControl;
+
+	/** Transport the dispatchers send their requests through. */
+	private volatile HttpStack mHttpStack = new HurlStack();
+
+	/** Receives the metrics of finished downloads, null when nobody listens. */
+	private volatile DownloadMetricsListener mMetricsListener;
+
+	/** Whether dispatchers move data through NIO channels instead of the stream copy loop. */
+	private volatile boolean mChannelTransferEnabled = false;
+
+	/** Whether destination files are extended to their full length before data is written. */
+	private volatile boolean mPreallocationEnabled = false;
+
+	/** Number of buffers between the network reads and the disk writes of a download, 0 for none. */
+	private volatile int mWritePipelineDepth = 0;
+
 	/**
 	 * Delivery class to delivery the call back to call back registrar in main thread.
 	 */
@@ -39,6 +128,15 @@ public class DownloadRequestQueue {
 		/** Used for posting responses, typically to the main thread. */
 		private final Executor mCallBackExecutor;
 
+		/** Minimum time between two progress callbacks of the same request. */
+		private volatile long mMinProgressIntervalMs = 0;
+
+		/** Minimum progress change, in percent, between two progress callbacks of the same request. */
+		private volatile int mMinProgressPercentDelta = 0;
+
+		/** Minimum progress change, in bytes, between two progress callbacks of the same request. */
+		private volatile long mMinProgressBytesDelta = 0;
+
 		/**
 		 * Constructor taking a handler to main thread.
 		 */
@@ -52,43 +150,81 @@ public class DownloadRequestQueue {
 			};
 		}
 
+		/**
+		 * Also notifies the duplicate requests attached to this one, no more requests can be attached afterwards.
+		 */
 		public void postDownloadComplete(final DownloadRequest request) {
+			reportMetrics(request, 0);
+			final List<DownloadRequest> followers = request.closeFollowers();
 			mCallBackExecutor.execute(new Runnable() {
 				public void run() {
-					if (request.getDownloadListener() != null) {
-						request.getDownloadListener().onDownloadComplete(request.getDownloadId());
-					}
-					if (request.getStatusListener() != null) {
-						request.getStatusListener().onDownloadComplete(request);
+					deliverDownloadComplete(request);
+					for (DownloadRequest follower : followers) {
+						deliverDownloadComplete(follower);
 					}
 				}
 			});
 		}
 
+		/**
+		 * Also notifies the duplicate requests attached to this one, no more requests can be attached afterwards.
+		 */
 		public void postDownloadFailed(final DownloadRequest request, final int errorCode, final String errorMsg) {
+			reportMetrics(request, errorCode);
+			final List<DownloadRequest> followers = request.closeFollowers();
 			mCallBackExecutor.execute(new Runnable() {
 				public void run() {
-					if (request.getDownloadListener() != null) {
-						request.getDownloadListener().onDownloadFailed(request.getDownloadId(), errorCode, errorMsg);
-					}
-					if (request.getStatusListener() != null) {
-						request.getStatusListener().onDownloadFailed(request, errorCode, errorMsg);
+					deliverDownloadFailed(request, errorCode, errorMsg);
+					for (DownloadRequest follower : followers) {
+						deliverDownloadFailed(follower, errorCode, errorMsg);
 					}
 				}
 			});
 		}
 
+		private void deliverDownloadComplete(DownloadRequest request) {
+			if (request.getDownloadListener() != null) {
+				request.getDownloadListener().onDownloadComplete(request.getDownloadId());
+			}
+			if (request.getStatusListener() != null) {
+				request.getStatusListener().onDownloadComplete(request);
+			}
+			if (request.getGroup() != null) {
+				request.getGroup().onFinished(request.getGroupIndex(), true);
+			}
+		}
+
+		private void deliverDownloadFailed(DownloadRequest request, int errorCode, String errorMsg) {
+			if (request.getDownloadListener() != null) {
+				request.getDownloadListener().onDownloadFailed(request.getDownloadId(), errorCode, errorMsg);
+			}
+			if (request.getStatusListener() != null) {
+				request.getStatusListener().onDownloadFailed(request, errorCode, errorMsg);
+			}
+			if (request.getGroup() != null) {
+				request.getGroup().onFinished(request.getGroupIndex(), false);
+			}
+		}
+
+		/**
+		 * Progress is coalesced per request: the latest value overwrites the one waiting for delivery
+		 * and at most one progress message per request is queued on the callback executor.
+		 */
 		public void postProgressUpdate(final DownloadRequest request, final long totalBytes, final long downloadedBytes, final int progress) {
-			mCallBackExecutor.execute(new Runnable() {
-				public void run() {
-					if (request.getDownloadListener() != null) {
-						request.getDownloadListener().onProgress(request.getDownloadId(), totalBytes, downloadedBytes, progress);
-					}
-					if (request.getStatusListener() != null) {
-						request.getStatusListener().onProgress(request, totalBytes, downloadedBytes, progress);
-					}
-				}
-			});
+			ProgressUpdate progressUpdate = request.getProgressUpdate();
+			if (progressUpdate.offer(totalBytes, downloadedBytes, progress,
+					mMinProgressIntervalMs, mMinProgressPercentDelta, mMinProgressBytesDelta)) {
+				mCallBackExecutor.execute(progressUpdate);
+			}
+		}
+
+		void setMinProgressInterval(long minIntervalMs) {
+			mMinProgressIntervalMs = minIntervalMs;
+		}
+
+		void setMinProgressDelta(int minPercentDelta, long minBytesDelta) {
+			mMinProgressPercentDelta = minPercentDelta;
+			mMinProgressBytesDelta = minBytesDelta;
 		}
 	}
 
@@ -121,15 +257,385 @@ public class DownloadRequestQueue {
 		initialize(callbackHandler);
 	}
 
+	/**
+	 * Construct with provided callback handler, running the downloads on the given executor rather
+	 * than on threads of the queue. Each of the maxConcurrentDownloads dispatchers occupies one
+	 * task of the executor until the queue is released, so the executor must be able to run that many
+	 * tasks at once, e.g. a cached thread pool or, where the runtime has them, a virtual thread per
+	 * task executor. The number is independent of the processor count.
+	 *
+	 * @param callbackHandler - callback handler
+	 * @param executor - executor running the dispatchers
+	 * @param maxConcurrentDownloads - number of downloads running at the same time
+	 */
+	public DownloadRequestQueue(Handler callbackHandler, Executor executor, int maxConcurrentDownloads) throws InvalidParameterException {
+		if (callbackHandler == null) {
+			throw new InvalidParameterException("callbackHandler must not be null");
+		}
+		if (executor == null) {
+			throw new InvalidParameterException("executor must not be null");
+		}
+		if (maxConcurrentDownloads < 1) {
+			throw new InvalidParameterException("maxConcurrentDownloads must be positive");
+		}
+
+		initialize(callbackHandler, maxConcurrentDownloads);
+		mDispatcherExecutor = executor;
+	}
+
 	public void start() {
 		stop(); // Make sure any currently running dispatchers are stopped.
 
-		// Create download dispatchers (and corresponding threads) up to the pool size.
+		// Create download dispatchers (and corresponding threads or tasks) up to the pool size.
 		for (int i = 0; i < mDownloadDispatchers.length; i++) {
-			DownloadDispatcher downloadDispatcher = new DownloadDispatcher(mDownloadQueue, mDelivery);
+			DownloadDispatcher downloadDispatcher = new DownloadDispatcher(mDownloadQueue, mDelivery, this, mDispatcherExecutor == null);
 			mDownloadDispatchers[i] = downloadDispatcher;
-			downloadDispatcher.start();
+			if (mDispatcherExecutor == null) {
+				new Thread(downloadDispatcher, "DownloadDispatcher-" + i).start();
+			} else {
+				mDispatcherExecutor.execute(downloadDispatcher);
+			}
+		}
+	}
+
+	/**
+	 * Set the size of the buffer used to stream the data. Larger buffers mean fewer reads and writes
+	 * per byte, which mostly pays off together with {@link #setChannelTransferEnabled(boolean)}.
+	 * Takes effect for downloads starting after the call.
+	 *
+	 * @param bufferSize - buffer size in bytes
+	 */
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("bufferSize must be positive");
 		}
+		mBufferPool.setBufferSize(bufferSize);
+	}
+
+	public int getBufferSize() {
+		return mBufferPool.getBufferSize();
+	}
+
+	/**
+	 * Set how many idle buffers of each kind, heap and direct, the shared pool keeps for reuse.
+	 * Defaults to two per dispatcher, downloads split into segments borrow one buffer per segment.
+	 *
+	 * @param maxBuffers - maximum number of pooled buffers, 0 disables pooling
+	 */
+	public void setBufferPoolSize(int maxBuffers) {
+		if (maxBuffers < 0) {
+			throw new IllegalArgumentException("maxBuffers must not be negative");
+		}
+		mBufferPool.setMaxBuffers(maxBuffers);
+	}
+
+	public int getBufferPoolSize() {
+		return mBufferPool.getMaxBuffers();
+	}
+
+	/**
+	 * Returns how many times a transfer was served an already allocated buffer.
+	 */
+	public long getBufferPoolHits() {
+		return mBufferPool.getHitCount();
+	}
+
+	/**
+	 * Returns how many times a transfer had to allocate a new buffer.
+	 */
+	public long getBufferPoolMisses() {
+		return mBufferPool.getMissCount();
+	}
+
+	/**
+	 * Selects the NIO transfer path: the response is read through a {@link java.nio.channels.ReadableByteChannel}
+	 * into a direct buffer which is only written to the destination {@link java.nio.channels.FileChannel}
+	 * once full, so each disk write covers a whole buffer. Takes effect for downloads starting after the call.
+	 *
+	 * @param enabled - true to use channels, false for the default stream copy loop
+	 */
+	public void setChannelTransferEnabled(boolean enabled) {
+		mChannelTransferEnabled = enabled;
+	}
+
+	public boolean isChannelTransferEnabled() {
+		return mChannelTransferEnabled;
+	}
+
+	/**
+	 * Reserves the whole destination file before the data of a download with a known length is
+	 * written, through posix_fallocate on API 21 and up, so the file isn't fragmented by many small
+	 * appends and a full volume fails the download with {@link DownloadManager#ERROR_INSUFFICIENT_SPACE}
+	 * before any data is transferred. A resumable download stores its valid length next to the file
+	 * first and resumes from there. Takes effect for downloads starting after the call.
+	 *
+	 * @param enabled - true to preallocate destination files
+	 */
+	public void setPreallocationEnabled(boolean enabled) {
+		mPreallocationEnabled = enabled;
+	}
+
+	public boolean isPreallocationEnabled() {
+		return mPreallocationEnabled;
+	}
+
+	/**
+	 * Moves the disk writes of each download off its dispatcher. The dispatcher fills buffers from
+	 * the response and hands them to a writer through a ring of the given size, so reading the
+	 * network and writing a slow flash overlap; once every buffer waits for the disk the reads pause
+	 * until one is written. The writers run on a pool of this queue sized to its dispatchers. The
+	 * ring buffers are taken from the shared pool, consider raising {@link #setBufferPoolSize(int)}
+	 * to match. Takes effect for downloads starting after the call.
+	 *
+	 * @param buffers - buffers in the ring, at least 2, or 0 to write on the dispatcher thread
+	 */
+	public void setWritePipelineDepth(int buffers) {
+		if (buffers < 0 || buffers == 1) {
+			throw new IllegalArgumentException("buffers must be 0 or at least 2");
+		}
+		mWritePipelineDepth = buffers;
+	}
+
+	public int getWritePipelineDepth() {
+		return mWritePipelineDepth;
+	}
+
+	/**
+	 * Limits how often progress is reported for a single request. Updates arriving sooner are
+	 * folded into the next one, the final update of a download is always delivered.
+	 *
+	 * @param minIntervalMs - minimum milliseconds between two progress callbacks, 0 for no limit
+	 */
+	public void setProgressInterval(long minIntervalMs) {
+		if (minIntervalMs < 0) {
+			throw new IllegalArgumentException("minIntervalMs must not be negative");
+		}
+		mDelivery.setMinProgressInterval(minIntervalMs);
+	}
+
+	/**
+	 * Skips progress updates that moved less than both given deltas since the last reported one.
+	 * A delta of 0 is not checked.
+	 *
+	 * @param minPercentDelta - minimum change in percent
+	 * @param minBytesDelta - minimum change in bytes
+	 */
+	public void setProgressDelta(int minPercentDelta, long minBytesDelta) {
+		if (minPercentDelta < 0 || minBytesDelta < 0) {
+			throw new IllegalArgumentException("Progress deltas must not be negative");
+		}
+		mDelivery.setMinProgressDelta(minPercentDelta, minBytesDelta);
+	}
+
+	/**
+	 * Limits how many downloads may run against the same host at once, the remaining dispatchers
+	 * pick up requests for other hosts. Within a priority level hosts are always served in turns.
+	 *
+	 * @param maxDownloadsPerHost - maximum concurrent downloads per host, 0 for no limit
+	 */
+	public void setMaxDownloadsPerHost(int maxDownloadsPerHost) {
+		if (maxDownloadsPerHost < 0) {
+			throw new IllegalArgumentException("maxDownloadsPerHost must not be negative");
+		}
+		mDownloadQueue.setMaxPerHost(maxDownloadsPerHost);
+	}
+
+	public int getMaxDownloadsPerHost() {
+		return mDownloadQueue.getMaxPerHost();
+	}
+
+	/**
+	 * Makes running downloads reserve the space they still need on their destination volume once
+	 * their length is known. A download that doesn't fit next to the reservations of the running
+	 * ones goes back into the queue instead of failing halfway, and starts again once they are done
+	 * and the space is free. With nothing else running on the volume a download always starts and
+	 * fails right away with {@link DownloadManager#ERROR_INSUFFICIENT_SPACE} if it can't fit.
+	 *
+	 * @param enabled - true to reserve disk space
+	 */
+	public void setSpaceReservationEnabled(boolean enabled) {
+		mDownloadQueue.setSpaceReservationEnabled(enabled);
+	}
+
+	public boolean isSpaceReservationEnabled() {
+		return mDownloadQueue.isSpaceReservationEnabled();
+	}
+
+	/**
+	 * Caps the combined bandwidth of all the downloads, it can be changed while downloads are
+	 * running. Requests can be limited further with {@link DownloadRequest#setMaxBytesPerSecond(long)}.
+	 *
+	 * @param maxBytesPerSecond - maximum bytes per second, 0 for no limit
+	 */
+	public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+		if (maxBytesPerSecond < 0) {
+			throw new IllegalArgumentException("maxBytesPerSecond must not be negative");
+		}
+		mRateLimiter.setBytesPerSecond(maxBytesPerSecond);
+	}
+
+	public long getMaxBytesPerSecond() {
+		return mRateLimiter.getBytesPerSecond();
+	}
+
+	/**
+	 * Enables the download journal: requests added from now on are recorded in the given directory
+	 * and checkpointed while they download, so they can be restored with {@link #recover(DownloadStatusListenerV1)}
+	 * after the process died. Pass null to disable journaling.
+	 *
+	 * @param directory - directory private to the application holding the journal entries
+	 */
+	public void setJournalDirectory(File directory) {
+		mJournal = directory == null ? null : new DownloadJournal(directory);
+	}
+
+	/**
+	 * Restores the downloads recorded in the journal by a previous process and adds them to this
+	 * queue. Partially downloaded files are resumed from their last checkpoint, hence the restored
+	 * requests are always resumable.
+	 *
+	 * @param statusListener - listener set on every restored request, may be null
+	 * @return the restored requests, with their new download ids
+	 */
+	public List<DownloadRequest> recover(DownloadStatusListenerV1 statusListener) {
+		DownloadJournal journal = mJournal;
+		if (journal == null) {
+			throw new IllegalStateException("Download journal is not enabled, call setJournalDirectory(...) first.");
+		}
+		List<DownloadRequest> requests = journal.restore();
+		for (DownloadRequest request : requests) {
+			request.setStatusListener(statusListener);
+			add(request);
+		}
+		return requests;
+	}
+
+	/**
+	 * When enabled, adding a request whose URI and destination match a request still in flight
+	 * doesn't start a second transfer: the new request is attached to the running one, gets its
+	 * download id and receives the same progress, completion and failure callbacks. Cancelling or
+	 * pausing that id affects both.
+	 *
+	 * @param coalesce - true to coalesce duplicate requests
+	 */
+	public void setCoalesceDuplicates(boolean coalesce) {
+		mCoalesceDuplicates = coalesce;
+	}
+
+	public boolean isCoalesceDuplicates() {
+		return mCoalesceDuplicates;
+	}
+
+	/**
+	 * Sets the backoff between retries of a request whose connection timed out. The n-th retry waits
+	 * initialDelayMs * 2^(n-1), capped at maxDelayMs, of which a random part of up to one half is
+	 * taken off so requests failing together don't come back together. The number of retries and
+	 * the timeouts are still up to the request's {@link RetryPolicy}.
+	 *
+	 * @param initialDelayMs - delay before the first retry in milliseconds
+	 * @param maxDelayMs - longest delay in milliseconds
+	 */
+	public void setRetryBackoff(long initialDelayMs, long maxDelayMs) {
+		if (initialDelayMs < 0 || maxDelayMs < initialDelayMs) {
+			throw new IllegalArgumentException("Expected 0 <= initialDelayMs <= maxDelayMs");
+		}
+		mRetryInitialDelayMs = initialDelayMs;
+		mRetryMaxDelayMs = maxDelayMs;
+	}
+
+	/**
+	 * Lets the number of downloads running at once follow the measured throughput. Every sample
+	 * interval the limit grows by one while the combined throughput keeps improving and shrinks by a
+	 * quarter when it drops, within the given bounds. The limit can't exceed the number of dispatchers.
+	 *
+	 * @param minConcurrent - lowest limit, at least 1
+	 * @param maxConcurrent - highest limit, at most the number of dispatchers
+	 * @param sampleIntervalMs - time between two throughput samples in milliseconds
+	 */
+	public synchronized void setAdaptiveConcurrency(int minConcurrent, int maxConcurrent, long sampleIntervalMs) {
+		if (mReleased) {
+			throw new IllegalStateException("setAdaptiveConcurrency(...) called on a released queue.");
+		}
+		if (minConcurrent < 1 || maxConcurrent < minConcurrent || maxConcurrent > mDownloadDispatchers.length) {
+			throw new IllegalArgumentException("Expected 1 <= minConcurrent <= maxConcurrent <= " + mDownloadDispatchers.length);
+		}
+		if (sampleIntervalMs <= 0) {
+			throw new IllegalArgumentException("sampleIntervalMs must be positive");
+		}
+		disableAdaptiveConcurrency();
+		ConcurrencyController controller = new ConcurrencyController(this, mDownloadQueue, minConcurrent, maxConcurrent);
+		// Not null, release() takes the same monitor.
+		mConcurrencyControl = getScheduledExecutor().scheduleWithFixedDelay(controller,
+				sampleIntervalMs, sampleIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops adapting the concurrency, every dispatcher may run a download again.
+	 */
+	public synchronized void disableAdaptiveConcurrency() {
+		if (mConcurrencyControl != null) {
+			mConcurrencyControl.cancel(false);
+			mConcurrencyControl = null;
+		}
+		mDownloadQueue.setMaxActive(0);
+	}
+
+	/**
+	 * Returns how many downloads may currently run at once.
+	 */
+	public int getConcurrencyLimit() {
+		int maxActive = mDownloadQueue.getMaxActive();
+		return maxActive > 0 ? maxActive : mDownloadDispatchers.length;
+	}
+
+	/**
+	 * Replaces the transport used for new requests, {@link HurlStack} by default.
+	 *
+	 * @param httpStack - transport, e.g. a client multiplexing over HTTP/2 or an in-memory fake in tests
+	 */
+	public void setHttpStack(HttpStack httpStack) {
+		if (httpStack == null) {
+			throw new NullPointerException("httpStack");
+		}
+		mHttpStack = httpStack;
+	}
+
+	public HttpStack getHttpStack() {
+		return mHttpStack;
+	}
+
+	/**
+	 * Sets the listener receiving the {@link DownloadMetrics} of every download once it has
+	 * completed or failed. The listener is called on the download thread.
+	 *
+	 * @param listener - metrics listener, null to stop reporting
+	 */
+	public void setMetricsListener(DownloadMetricsListener listener) {
+		mMetricsListener = listener;
+	}
+
+	/**
+	 * Returns the number of requests waiting for a dispatcher.
+	 */
+	public int getQueueDepth() {
+		DownloadScheduler downloadQueue = mDownloadQueue;
+		return downloadQueue == null ? 0 : downloadQueue.size();
+	}
+
+	/**
+	 * Returns the number of dispatchers currently running a download.
+	 */
+	public int getActiveDownloadCount() {
+		DownloadScheduler downloadQueue = mDownloadQueue;
+		return downloadQueue == null ? 0 : downloadQueue.getActive();
+	}
+
+	/**
+	 * Returns the number of dispatchers, the most downloads that can run at once.
+	 */
+	public int getDispatcherCount() {
+		DownloadDispatcher[] dispatchers = mDownloadDispatchers;
+		return dispatchers == null ? 0 : dispatchers.length;
 	}
 
 	// Package-Private methods.
@@ -140,19 +646,69 @@ public class DownloadRequestQueue {
 	 * @return downloadId
 	 */
 	int add(DownloadRequest request) {
+		if (register(request)) {
+			mDownloadQueue.add(request);
+		}
+		return request.getDownloadId();
+	}
+
+	/**
+	 * Adds the requests as one group. Ids are generated in the order of the collection and all the
+	 * requests are handed to the dispatchers in a single step.
+	 *
+	 * @param requests - requests of the group
+	 * @param listener - group listener, may be null
+	 * @return the group handle
+	 */
+	DownloadGroup addAll(Collection<DownloadRequest> requests, DownloadGroupListener listener) {
+		DownloadGroup group = new DownloadGroup(mGroupSequenceGenerator.incrementAndGet(), requests, listener, this);
+		mGroups.put(group.getGroupId(), group);
+		List<DownloadRequest> members = group.getRequests();
+		List<DownloadRequest> scheduled = new ArrayList<>(members.size());
+		for (int i = 0; i < members.size(); i++) {
+			DownloadRequest request = members.get(i);
+			request.setGroup(group, i);
+			if (register(request)) {
+				scheduled.add(request);
+			}
+		}
+		mDownloadQueue.addAll(scheduled);
+		return group;
+	}
+
+	/**
+	 * Assigns the download id and records the request, unless it is attached to a duplicate in flight.
+	 *
+	 * @return true if the request has to be scheduled
+	 */
+	private boolean register(DownloadRequest request) {
 		int downloadId = getDownloadId();
 		// Tag the request as belonging to this queue and add it to the set of current requests.
 		request.setDownloadRequestQueue(this);
 
-		synchronized (mCurrentRequests) {
-			mCurrentRequests.add(request);
-		}
-
 		// Process requests in the order they are added.
 		request.setDownloadId(downloadId);
-		mDownloadQueue.add(request);
 
-		return downloadId;
+		// A sink receives the bytes of its own transfer only, so it is never shared.
+		if (mCoalesceDuplicates && request.getDestinationURI() != null && !request.hasDestinationSink()) {
+			DownloadRequest existing = registerTarget(request);
+			if (existing != null) {
+				request.setDownloadId(existing.getDownloadId());
+				Log.v("Attached duplicate request to Download Id " + existing.getDownloadId());
+				return false;
+			}
+		}
+
+		request.setMetrics(new DownloadMetrics(downloadId, request.getUri().toString()));
+		mCurrentRequests.put(downloadId, request);
+		DownloadJournal journal = mJournal;
+		if (journal != null) {
+			ScheduledExecutorService executor = getScheduledExecutor();
+			if (executor != null) {
+				journal.record(request, executor);
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -162,12 +718,9 @@ public class DownloadRequestQueue {
 	 * @return
 	 */
 	int query(int downloadId) {
-		synchronized (mCurrentRequests) {
-			for (DownloadRequest request : mCurrentRequests) {
-				if (request.getDownloadId() == downloadId) {
-					return request.getDownloadState();
-				}
-			}
+		DownloadRequest request = mCurrentRequests.get(downloadId);
+		if (request != null) {
+			return request.getDownloadState();
 		}
 		return DownloadManager.STATUS_NOT_FOUND;
 	}
@@ -176,14 +729,11 @@ public class DownloadRequestQueue {
 	 * Cancel all the dispatchers in work and also stops the dispatchers.
 	 */
 	void cancelAll() {
-
-		synchronized (mCurrentRequests) {
-			for (DownloadRequest request : mCurrentRequests) {
-				request.cancel();
-			}
-
-			// Remove all the requests from the queue.
-			mCurrentRequests.clear();
+		Iterator<DownloadRequest> iterator = mCurrentRequests.values().iterator();
+		while (iterator.hasNext()) {
+			iterator.next().cancel();
+			// Remove the request from the queue.
+			iterator.remove();
 		}
 	}
 
@@ -194,18 +744,43 @@ public class DownloadRequestQueue {
 	 * @return int
 	 */
 	int cancel(int downloadId) {
-		synchronized (mCurrentRequests) {
-			for (DownloadRequest request : mCurrentRequests) {
-				if (request.getDownloadId() == downloadId) {
-					request.cancel();
-					return 1;
-				}
-			}
+		DownloadRequest request = mCurrentRequests.get(downloadId);
+		if (request != null) {
+			request.cancel();
+			return 1;
 		}
 
 		return 0;
 	}
 
+	/**
+	 * Cancels every download of a group. Requests still waiting are failed right away without
+	 * opening a connection. A request attached to a duplicate outside the group keeps sharing its
+	 * transfer. Returns 1 if the group id is found else returns 0.
+	 *
+	 * @param groupId
+	 * @return int
+	 */
+	int cancelGroup(int groupId) {
+		DownloadGroup group = mGroups.get(groupId);
+		if (group == null) {
+			return 0;
+		}
+		for (DownloadRequest request : group.getRequests()) {
+			request.cancel();
+		}
+		for (DownloadRequest request : mDownloadQueue.removeAll(group.getRequests())) {
+			request.setDownloadState(DownloadManager.STATUS_FAILED);
+			mDelivery.postDownloadFailed(request, DownloadManager.ERROR_DOWNLOAD_CANCELLED, "Download cancelled");
+			request.finish();
+		}
+		return 1;
+	}
+
+	void removeGroup(DownloadGroup group) {
+		mGroups.remove(group.getGroupId(), group);
+	}
+
 	/**
 	 * Pause a particular download in progress.
 	 *
@@ -231,39 +806,93 @@ public class DownloadRequestQueue {
 	 * hasn't enable isResumable feature.
 	 */
 	private void checkResumableDownloadEnabled(int downloadId) {
-		synchronized (mCurrentRequests) {
-			for (DownloadRequest request : mCurrentRequests) {
-				if (downloadId == -1 && !request.isResumable()) {
+		if (downloadId == -1) {
+			for (DownloadRequest request : mCurrentRequests.values()) {
+				if (!request.isResumable()) {
 					Log.e("ThinDownloadManager",
 							String.format(Locale.getDefault(), "This request has not enabled resume feature hence request will be cancelled. Request Id: %d", request.getDownloadId()));
-				} else if ((request.getDownloadId() == downloadId && !request.isResumable())) {
-					throw new IllegalStateException("You cannot pause the download, unless you have enabled Resume feature in DownloadRequest.");
-				} else {
-					//ignored, It can not be a scenario to happen.
 				}
 			}
+		} else {
+			DownloadRequest request = mCurrentRequests.get(downloadId);
+			if (request != null && !request.isResumable()) {
+				throw new IllegalStateException("You cannot pause the download, unless you have enabled Resume feature in DownloadRequest.");
+			}
 		}
 	}
 
-	void finish(DownloadRequest request) {
-		if (mCurrentRequests != null) {//if finish and release are called together it throws NPE
-			// Remove from the queue.
-			synchronized (mCurrentRequests) {
-				mCurrentRequests.remove(request);
+	/**
+	 * Indexes the request by its source and destination, or attaches it to the in-flight request
+	 * having the same ones.
+	 *
+	 * @return the request it was attached to, null if the request has to be downloaded itself
+	 */
+	private DownloadRequest registerTarget(DownloadRequest request) {
+		String target = getTarget(request);
+		while (true) {
+			DownloadRequest existing = mInFlightTargets.putIfAbsent(target, request);
+			if (existing == null) {
+				return null;
+			}
+			if (existing.attachFollower(request)) {
+				return existing;
+			}
+			// The existing request is already done, take over its slot.
+			if (mInFlightTargets.replace(target, existing, request)) {
+				return null;
 			}
 		}
 	}
 
+	private static String getTarget(DownloadRequest request) {
+		return request.getUri() + " -> " + request.getDestinationURI();
+	}
+
+	void finish(DownloadRequest request) {
+		ConcurrentHashMap<Integer, DownloadRequest> currentRequests = mCurrentRequests;
+		if (currentRequests != null) {//if finish and release are called together it throws NPE
+			// Remove from the queue, unless the id was already taken over by another request.
+			currentRequests.remove(request.getDownloadId(), request);
+		}
+		if (request.getDestinationURI() != null) {
+			mInFlightTargets.remove(getTarget(request), request);
+		}
+		DownloadJournal journal = mJournal;
+		if (journal != null) {
+			journal.remove(request);
+		}
+	}
+
 	/**
 	 * Cancels all the pending & running requests and releases all the dispatchers.
 	 */
 	void release() {
-		if (mCurrentRequests != null) {
-			synchronized (mCurrentRequests) {
-				mCurrentRequests.clear();
-				mCurrentRequests = null;
+		ConcurrentHashMap<Integer, DownloadRequest> currentRequests = mCurrentRequests;
+		if (currentRequests != null) {
+			mCurrentRequests = null;
+			currentRequests.clear();
+		}
+		mInFlightTargets.clear();
+		mGroups.clear();
+
+		List<DownloadRequest> pendingRetries;
+		synchronized (this) {
+			mReleased = true;
+			if (mScheduledExecutor != null) {
+				mScheduledExecutor.shutdownNow();
+				mScheduledExecutor = null;
+				mConcurrencyControl = null;
 			}
+			pendingRetries = new ArrayList<>(mPendingRetries);
+			mPendingRetries.clear();
 		}
+		// Their timers were dropped with the timer thread.
+		for (DownloadRequest request : pendingRetries) {
+			failCancelled(request);
+		}
+		mWriterExecutor.shutdownNow();
+		// Interrupted segments stop at their next read.
+		mSegmentExecutor.shutdownNow();
 
 		if (mDownloadQueue != null) {
 			mDownloadQueue = null;
@@ -289,8 +918,7 @@ public class DownloadRequestQueue {
 	 */
 	private void initialize(Handler callbackHandler) {
 		int processors = Runtime.getRuntime().availableProcessors();
-		mDownloadDispatchers = new DownloadDispatcher[processors];
-		mDelivery = new CallBackDelivery(callbackHandler);
+		initialize(callbackHandler, processors);
 	}
 
 	/**
@@ -299,6 +927,157 @@ public class DownloadRequestQueue {
 	private void initialize(Handler callbackHandler, int threadPoolSize) {
 		mDownloadDispatchers = new DownloadDispatcher[threadPoolSize];
 		mDelivery = new CallBackDelivery(callbackHandler);
+		mBufferPool = new BufferPool(threadPoolSize * 2, DEFAULT_BUFFER_SIZE);
+		mWriterExecutor = newTransferExecutor(threadPoolSize, "DownloadWriter-");
+		mSegmentExecutor = Executors.newCachedThreadPool(newTransferThreadFactory("DownloadSegment-"));
+	}
+
+	/**
+	 * Creates a bounded pool for one kind of transfer stage, its threads exit after a minute without
+	 * work.
+	 */
+	private static ThreadPoolExecutor newTransferExecutor(int maxThreads, String name) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), newTransferThreadFactory(name));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private static ThreadFactory newTransferThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + mCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	RateLimiter getRateLimiter() {
+		return mRateLimiter;
+	}
+
+	DownloadJournal getJournal() {
+		return mJournal;
+	}
+
+	void onBytesTransferred(int bytes) {
+		mTransferredBytes.addAndGet(bytes);
+	}
+
+	long getTransferredBytes() {
+		return mTransferredBytes.get();
+	}
+
+	/**
+	 * Closes the metrics of a finished request and hands them to the metrics listener.
+	 *
+	 * @param errorCode - error code the request failed with, 0 if it completed
+	 */
+	private void reportMetrics(DownloadRequest request, int errorCode) {
+		DownloadMetrics metrics = request.getMetrics();
+		if (metrics == null || !metrics.onFinished(errorCode)) {
+			return;
+		}
+		DownloadMetricsListener listener = mMetricsListener;
+		if (listener != null) {
+			listener.onDownloadMetrics(metrics);
+		}
+	}
+
+	/**
+	 * Puts a request whose connection timed out back into the queue once its backoff has passed.
+	 * A request cancelled in the meantime fails instead, and so does a request whose queue is
+	 * released before the retry, with {@link DownloadManager#ERROR_DOWNLOAD_CANCELLED}.
+	 *
+	 * @param retryCount - number of the retry, starting at 1
+	 */
+	void scheduleRetry(final DownloadRequest request, int retryCount) {
+		long delayMs = getRetryDelay(retryCount);
+		final DownloadScheduler downloadQueue = mDownloadQueue;
+		synchronized (this) {
+			ScheduledExecutorService executor = getScheduledExecutor();
+			if (executor != null) {
+				Log.v("Retrying Download Id " + request.getDownloadId() + " in " + delayMs + " ms");
+				mPendingRetries.add(request);
+				executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (DownloadRequestQueue.this) {
+							if (!mPendingRetries.remove(request)) {
+								// Already failed by release().
+								return;
+							}
+						}
+						if (request.isCancelled()) {
+							failCancelled(request);
+						} else {
+							downloadQueue.add(request);
+						}
+					}
+				}, delayMs, TimeUnit.MILLISECONDS);
+				return;
+			}
+		}
+		Log.v("Not retrying Download Id " + request.getDownloadId() + ", the queue was released");
+		failCancelled(request);
+	}
+
+	private void failCancelled(DownloadRequest request) {
+		request.setDownloadState(DownloadManager.STATUS_FAILED);
+		mDelivery.postDownloadFailed(request, DownloadManager.ERROR_DOWNLOAD_CANCELLED, "Download cancelled");
+		request.finish();
+	}
+
+	/**
+	 * Returns the backoff before the given retry, with jitter.
+	 */
+	long getRetryDelay(int retryCount) {
+		long delayMs = mRetryInitialDelayMs;
+		long maxDelayMs = mRetryMaxDelayMs;
+		for (int i = 1; i < retryCount && delayMs < maxDelayMs; i++) {
+			delayMs *= 2;
+		}
+		delayMs = Math.min(delayMs, maxDelayMs);
+		return delayMs - (long) (mRetryJitter.nextDouble() * delayMs / 2);
+	}
+
+	/**
+	 * Returns the single timer thread of this queue, used instead of a thread per background job.
+	 * Once the queue is released there is none, so nothing can start a new thread behind release().
+	 *
+	 * @return the executor, null if the queue was released
+	 */
+	synchronized ScheduledExecutorService getScheduledExecutor() {
+		if (mReleased) {
+			return null;
+		}
+		if (mScheduledExecutor == null) {
+			mScheduledExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "DownloadRequestQueue-Scheduler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return mScheduledExecutor;
+	}
+
+	BufferPool getBufferPool() {
+		return mBufferPool;
+	}
+
+	ExecutorService getSegmentExecutor() {
+		return mSegmentExecutor;
+	}
+
+	ExecutorService getWriterExecutor() {
+		return mWriterExecutor;
 	}
 
 	/**
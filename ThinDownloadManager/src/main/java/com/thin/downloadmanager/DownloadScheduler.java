@@ -0,0 +1,398 @@
+package com.thin.downloadmanager;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hands out waiting requests to the dispatchers. Requests are served from higher priorities to
+ * lower priorities; within a priority level the hosts take turns so one origin with a large batch
+ * can't occupy every dispatcher, and requests of the same host keep their FIFO order, apart from
+ * requests waiting for space, which let the ones behind them pass.
+ * Optionally limits how many downloads may run against a single host, and in total, at the same time,
+ * and holds back downloads the destination volume has no room for next to the running ones.
+ */
+class DownloadScheduler {
+
+    /**
+     * Waiting requests per priority level, grouped by host. The iteration order of each map is the
+     * round robin order of its hosts.
+     */
+    private final List<LinkedHashMap<String, ArrayDeque<DownloadRequest>>> mWaiting;
+
+    /** Number of running downloads per host. */
+    private final HashMap<String, Integer> mActivePerHost = new HashMap<>();
+
+    /** Maximum number of running downloads per host, 0 for no limit. */
+    private int mMaxPerHost = 0;
+
+    /** Number of running downloads. */
+    private int mActive = 0;
+
+    /** Maximum number of running downloads, 0 for no limit besides the dispatcher count. */
+    private int mMaxActive = 0;
+
+    /** Number of waiting requests. */
+    private int mSize = 0;
+
+    /** Whether running downloads reserve the space they still need on their destination volume. */
+    private boolean mSpaceReservationEnabled = false;
+
+    /** Space reserved by running downloads. */
+    private final IdentityHashMap<DownloadRequest, Reservation> mReservations = new IdentityHashMap<>();
+
+    /** Requests waiting for space, with the reservation they asked for. */
+    private final IdentityHashMap<DownloadRequest, Reservation> mWaitingForSpace = new IdentityHashMap<>();
+
+    /** Running requests to put back into the queue once their dispatcher is done with them. */
+    private final Set<DownloadRequest> mDeferred = Collections.newSetFromMap(new IdentityHashMap<DownloadRequest, Boolean>());
+
+    /**
+     * Free space of each volume not claimed by the reservations on it, as of the last usable space
+     * lookup. Writes of running downloads take as much from the usable space as from their
+     * reservations, so it only changes when reservations are made or dropped.
+     */
+    private final HashMap<String, Long> mHeadroom = new HashMap<>();
+
+    /** Volume lookups, only ever done outside the monitor. */
+    private final VolumeResolver mVolumeResolver = new VolumeResolver();
+
+    DownloadScheduler() {
+        int levels = DownloadRequest.Priority.values().length;
+        mWaiting = new ArrayList<>(levels);
+        for (int i = 0; i < levels; i++) {
+            mWaiting.add(new LinkedHashMap<String, ArrayDeque<DownloadRequest>>());
+        }
+    }
+
+    synchronized void add(DownloadRequest request) {
+        enqueue(request);
+        notifyAll();
+    }
+
+    /**
+     * Adds the requests in one step, waking the dispatchers once.
+     */
+    synchronized void addAll(Collection<DownloadRequest> requests) {
+        for (DownloadRequest request : requests) {
+            enqueue(request);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Removes the given requests if they are still waiting.
+     *
+     * @return the removed requests
+     */
+    synchronized List<DownloadRequest> removeAll(Collection<DownloadRequest> requests) {
+        Set<DownloadRequest> targets = Collections.newSetFromMap(new IdentityHashMap<DownloadRequest, Boolean>());
+        targets.addAll(requests);
+        List<DownloadRequest> removed = new ArrayList<>();
+        for (LinkedHashMap<String, ArrayDeque<DownloadRequest>> level : mWaiting) {
+            Iterator<ArrayDeque<DownloadRequest>> hosts = level.values().iterator();
+            while (hosts.hasNext()) {
+                ArrayDeque<DownloadRequest> waiting = hosts.next();
+                Iterator<DownloadRequest> iterator = waiting.iterator();
+                while (iterator.hasNext()) {
+                    DownloadRequest request = iterator.next();
+                    if (targets.contains(request)) {
+                        iterator.remove();
+                        mWaitingForSpace.remove(request);
+                        removed.add(request);
+                        mSize--;
+                    }
+                }
+                if (waiting.isEmpty()) {
+                    hosts.remove();
+                }
+            }
+        }
+        return removed;
+    }
+
+    private void enqueue(DownloadRequest request) {
+        enqueue(request, false);
+    }
+
+    /**
+     * @param first - whether the request goes ahead of the waiting requests of its host, to keep
+     *              the place of a request that was already taken once
+     */
+    private void enqueue(DownloadRequest request, boolean first) {
+        String host = getHost(request);
+        LinkedHashMap<String, ArrayDeque<DownloadRequest>> level = mWaiting.get(request.getPriority().ordinal());
+        ArrayDeque<DownloadRequest> requests = level.get(host);
+        if (requests == null) {
+            requests = new ArrayDeque<>();
+            level.put(host, requests);
+        }
+        if (first) {
+            requests.addFirst(request);
+        } else {
+            requests.addLast(request);
+        }
+        mSize++;
+        request.getMetrics().onQueued();
+    }
+
+    /**
+     * Retrieves the next request allowed to run, waiting if necessary. The caller must hand the
+     * request back through {@link #finish(DownloadRequest)} once it is done with it.
+     */
+    synchronized DownloadRequest take() throws InterruptedException {
+        DownloadRequest request;
+        while ((request = poll()) == null) {
+            wait();
+        }
+        return request;
+    }
+
+    /**
+     * Frees the host slot held by a request returned from {@link #take()}.
+     */
+    synchronized void finish(DownloadRequest request) {
+        Reservation reservation = mReservations.remove(request);
+        if (reservation != null) {
+            // The bytes it didn't write are free again.
+            addHeadroom(reservation.mVolume, reservation.getOutstandingBytes());
+        }
+        mActive--;
+        String host = getHost(request);
+        Integer active = mActivePerHost.get(host);
+        if (active != null) {
+            if (active <= 1) {
+                mActivePerHost.remove(host);
+            } else {
+                mActivePerHost.put(host, active - 1);
+            }
+        }
+        if (mDeferred.remove(request)) {
+            enqueue(request, true);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Reserves the space a running request still needs on its destination volume, once the
+     * dispatcher knows the content length. If the space is held by other running downloads the
+     * request is put back into the queue when its dispatcher finishes it, and admitted again once
+     * enough space is free. The volume and its usable space are looked up before the monitor is
+     * taken, the dispatchers waiting in {@link #take()} don't wait for the file system.
+     *
+     * @param bytes - bytes still to be written
+     * @return false if the request has to wait for space
+     */
+    boolean reserve(DownloadRequest request, long bytes) {
+        if (!isSpaceReservationEnabled() || bytes <= 0 || request.getDestinationURI() == null) {
+            return true;
+        }
+        File directory = VolumeResolver.getDirectory(request);
+        String volume = mVolumeResolver.getVolume(directory);
+        return reserve(request, new Reservation(request, bytes, volume), directory.getUsableSpace());
+    }
+
+    private synchronized boolean reserve(DownloadRequest request, Reservation reservation, long usableSpace) {
+        if (!mSpaceReservationEnabled) {
+            return true;
+        }
+        mReservations.remove(request);
+        long outstanding = getOutstandingBytes(reservation.mVolume);
+        mHeadroom.put(reservation.mVolume, usableSpace - outstanding);
+        if (!fits(reservation)) {
+            mWaitingForSpace.put(request, reservation);
+            mDeferred.add(request);
+            return false;
+        }
+        admit(request, reservation);
+        return true;
+    }
+
+    /**
+     * Drops the remaining reservation of a request whose whole file has been allocated on disk,
+     * the usable space of the volume already accounts for it.
+     */
+    synchronized void onAllocated(DownloadRequest request) {
+        if (mReservations.remove(request) != null) {
+            notifyAll();
+        }
+    }
+
+    synchronized void setSpaceReservationEnabled(boolean enabled) {
+        mSpaceReservationEnabled = enabled;
+        if (!enabled) {
+            mReservations.clear();
+            mWaitingForSpace.clear();
+            mHeadroom.clear();
+        }
+        notifyAll();
+    }
+
+    synchronized boolean isSpaceReservationEnabled() {
+        return mSpaceReservationEnabled;
+    }
+
+    synchronized void setMaxPerHost(int maxPerHost) {
+        mMaxPerHost = maxPerHost;
+        notifyAll();
+    }
+
+    synchronized int getMaxPerHost() {
+        return mMaxPerHost;
+    }
+
+    synchronized void setMaxActive(int maxActive) {
+        mMaxActive = maxActive;
+        notifyAll();
+    }
+
+    synchronized int getMaxActive() {
+        return mMaxActive;
+    }
+
+    synchronized int getActive() {
+        return mActive;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    private DownloadRequest poll() {
+        if (mMaxActive > 0 && mActive >= mMaxActive) {
+            return null;
+        }
+        for (int i = mWaiting.size() - 1; i >= 0; i--) {
+            LinkedHashMap<String, ArrayDeque<DownloadRequest>> level = mWaiting.get(i);
+            Iterator<Map.Entry<String, ArrayDeque<DownloadRequest>>> iterator = level.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, ArrayDeque<DownloadRequest>> entry = iterator.next();
+                String host = entry.getKey();
+                if (mMaxPerHost > 0 && getActive(host) >= mMaxPerHost) {
+                    continue;
+                }
+                ArrayDeque<DownloadRequest> requests = entry.getValue();
+                DownloadRequest request = null;
+                Reservation reservation = null;
+                // A request waiting for space doesn't hold up the ones behind it.
+                Iterator<DownloadRequest> candidates = requests.iterator();
+                while (candidates.hasNext()) {
+                    DownloadRequest candidate = candidates.next();
+                    reservation = mWaitingForSpace.get(candidate);
+                    if (reservation != null && !fits(reservation)) {
+                        continue;
+                    }
+                    candidates.remove();
+                    request = candidate;
+                    break;
+                }
+                if (request == null) {
+                    continue;
+                }
+                if (reservation != null) {
+                    mWaitingForSpace.remove(request);
+                    admit(request, reservation);
+                }
+                // Move the host to the back of the round robin order.
+                iterator.remove();
+                if (!requests.isEmpty()) {
+                    level.put(host, requests);
+                }
+                mActivePerHost.put(host, getActive(host) + 1);
+                mActive++;
+                mSize--;
+                request.getMetrics().onDequeued();
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the volume has room for the reservation next to the space the other running
+     * downloads on it still need. With nothing else running on the volume it always fits, the
+     * dispatcher then fails the download if the space really isn't there.
+     */
+    private boolean fits(Reservation reservation) {
+        if (getOutstandingBytes(reservation.mVolume) == 0) {
+            return true;
+        }
+        Long headroom = mHeadroom.get(reservation.mVolume);
+        return headroom != null && headroom >= reservation.mBytes;
+    }
+
+    private void admit(DownloadRequest request, Reservation reservation) {
+        mReservations.put(request, reservation);
+        addHeadroom(reservation.mVolume, -reservation.mBytes);
+    }
+
+    private void addHeadroom(String volume, long bytes) {
+        Long headroom = mHeadroom.get(volume);
+        if (headroom != null) {
+            mHeadroom.put(volume, headroom + bytes);
+        }
+    }
+
+    /**
+     * Returns the reserved bytes the running downloads on the volume still have to write.
+     */
+    private long getOutstandingBytes(String volume) {
+        long outstanding = 0;
+        for (Reservation reservation : mReservations.values()) {
+            if (reservation.mVolume.equals(volume)) {
+                outstanding += reservation.getOutstandingBytes();
+            }
+        }
+        return outstanding;
+    }
+
+    private int getActive(String host) {
+        Integer active = mActivePerHost.get(host);
+        return active == null ? 0 : active;
+    }
+
+    private static String getHost(DownloadRequest request) {
+        String host = request.getUri().getHost();
+        return host == null ? "" : host;
+    }
+
+    /**
+     * Space a download needs on the volume of its destination.
+     */
+    private static class Reservation {
+
+        /** Volume of the destination, see {@link VolumeResolver}. */
+        final String mVolume;
+
+        final long mBytes;
+
+        final DownloadMetrics mMetrics;
+
+        /** Bytes the download had received when the reservation was made. */
+        final long mBaseBytes;
+
+        Reservation(DownloadRequest request, long bytes, String volume) {
+            mVolume = volume;
+            mBytes = bytes;
+            mMetrics = request.getMetrics();
+            mBaseBytes = mMetrics == null ? 0 : mMetrics.getBytesTransferred();
+        }
+
+        /**
+         * Reserved bytes not written yet, the written ones already show in the usable space.
+         */
+        long getOutstandingBytes() {
+            long written = mMetrics == null ? 0 : mMetrics.getBytesTransferred() - mBaseBytes;
+            return Math.max(0, mBytes - written);
+        }
+    }
+}
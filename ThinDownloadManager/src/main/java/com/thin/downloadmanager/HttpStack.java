@@ -0,0 +1,45 @@
+package com.thin.downloadmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Transport used by the dispatchers to talk to the server. {@link HurlStack} is the default,
+ * an implementation can plug in another HTTP client, e.g. one multiplexing requests over HTTP/2.
+ */
+public interface HttpStack {
+
+    /**
+     * Sends a GET request. Redirects must not be followed, the dispatcher handles them.
+     *
+     * @param url       the url to fetch
+     * @param headers   request headers, including Range and If-Range when resuming
+     * @param timeoutMs connect and read timeout in milliseconds
+     * @return the response, connecting may be deferred until its status is read
+     */
+    Response performRequest(URL url, Map<String, String> headers, int timeoutMs) throws IOException;
+
+    /**
+     * Response of {@link #performRequest(URL, Map, int)}.
+     */
+    interface Response {
+
+        int getResponseCode() throws IOException;
+
+        String getResponseMessage() throws IOException;
+
+        /**
+         * Returns the value of the named header, null if it is missing.
+         */
+        String getHeaderField(String name);
+
+        InputStream getInputStream() throws IOException;
+
+        /**
+         * Releases the connection, the body can't be read afterwards.
+         */
+        void disconnect();
+    }
+}
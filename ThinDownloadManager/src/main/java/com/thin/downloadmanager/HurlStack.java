@@ -0,0 +1,230 @@
+package com.thin.downloadmanager;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link HttpStack} based on {@link HttpURLConnection}, the default transport.
+ * <p>
+ * By default every connection is torn down once its download is done. With
+ * {@link #setConnectionReuse(boolean)} a response whose body was read completely only
+ * closes its stream, which hands the socket back to the keep-alive pool of
+ * {@link HttpURLConnection} so the next request to the same host skips the TCP and TLS handshakes.
+ */
+public class HurlStack implements HttpStack {
+
+    /** Most bytes read off an unfinished body to keep its connection, larger rests close it. */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private volatile boolean mReuseConnections = false;
+
+    /** Responses closed so their connection goes back to the keep-alive pool. */
+    private final AtomicLong mReleasedToPoolCount = new AtomicLong();
+
+    /** Responses disconnected, e.g. when the body wasn't read to the end. */
+    private final AtomicLong mDisconnectedCount = new AtomicLong();
+
+    /**
+     * Keeps connections of this stack alive for the next request to the same host. A response is
+     * closed instead of disconnected once its body was read to the end; a short unread rest, such
+     * as the body of an error or a redirect, is drained first. The keep-alive pool itself belongs
+     * to {@link HttpURLConnection}, its size and idle timeout stay with the http.maxConnections
+     * and http.keepAliveDuration system properties, which this stack doesn't touch.
+     *
+     * @param enabled - true to reuse connections
+     * @return - current {@link HurlStack}
+     */
+    public HurlStack setConnectionReuse(boolean enabled) {
+        mReuseConnections = enabled;
+        return this;
+    }
+
+    public boolean isConnectionReuseEnabled() {
+        return mReuseConnections;
+    }
+
+    /**
+     * Number of responses closed with their connection handed back to the keep-alive pool. It
+     * doesn't measure reuse: {@link HttpURLConnection} doesn't tell whether a later request took
+     * the connection or the pool evicted it.
+     */
+    public long getReleasedToPoolCount() {
+        return mReleasedToPoolCount.get();
+    }
+
+    /**
+     * Number of responses whose connection was disconnected instead of handed back to the pool.
+     */
+    public long getDisconnectedCount() {
+        return mDisconnectedCount.get();
+    }
+
+    @Override
+    public Response performRequest(URL url, Map<String, String> headers, int timeoutMs) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setInstanceFollowRedirects(false);
+        conn.setConnectTimeout(timeoutMs);
+        conn.setReadTimeout(timeoutMs);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        return new HurlResponse(this, conn, mReuseConnections);
+    }
+
+    private static class HurlResponse implements Response {
+
+        private final HurlStack mStack;
+        private final HttpURLConnection mConnection;
+        private final boolean mReuseConnection;
+        private BodyInputStream mBody;
+        private boolean mDisconnected;
+
+        HurlResponse(HurlStack stack, HttpURLConnection connection, boolean reuseConnection) {
+            mStack = stack;
+            mConnection = connection;
+            mReuseConnection = reuseConnection;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return mConnection.getResponseCode();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            return mConnection.getResponseMessage();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (mBody == null) {
+                mBody = new BodyInputStream(mConnection.getInputStream(), getContentLength());
+            }
+            return mBody;
+        }
+
+        /**
+         * Closing the stream of a fully read body returns the socket to the pool, disconnecting
+         * would close it.
+         */
+        @Override
+        public void disconnect() {
+            if (mDisconnected) {
+                return;
+            }
+            mDisconnected = true;
+            if (mReuseConnection && drain()) {
+                try {
+                    mBody.close();
+                    mStack.mReleasedToPoolCount.incrementAndGet();
+                    return;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            mConnection.disconnect();
+            mStack.mDisconnectedCount.incrementAndGet();
+        }
+
+        /**
+         * Reads what is left of a short body, so its connection can be kept.
+         *
+         * @return true if the body was read to its end
+         */
+        private boolean drain() {
+            try {
+                if (mBody == null) {
+                    InputStream in = mConnection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+                            ? mConnection.getErrorStream() : mConnection.getInputStream();
+                    if (in == null) {
+                        return false;
+                    }
+                    mBody = new BodyInputStream(in, getContentLength());
+                }
+                if (mBody.isConsumed()) {
+                    return true;
+                }
+                long remaining = mBody.getRemaining();
+                if (remaining < 0 || remaining > MAX_DRAIN_BYTES) {
+                    return false;
+                }
+                byte[] buffer = new byte[(int) Math.min(remaining, 8192) + 1];
+                while (!mBody.isConsumed() && mBody.read(buffer, 0, buffer.length) != -1) {
+                    if (mBody.getRemaining() < 0) {
+                        // More bytes than announced.
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private long getContentLength() {
+            try {
+                return Long.parseLong(mConnection.getHeaderField("Content-Length"));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Remembers whether the body was read up to its end.
+     */
+    private static class BodyInputStream extends FilterInputStream {
+
+        private final long mContentLength;
+        private long mBytesRead;
+        private boolean mEndOfStream;
+
+        BodyInputStream(InputStream in, long contentLength) {
+            super(in);
+            mContentLength = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                mEndOfStream = true;
+            } else {
+                mBytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int bytesRead = super.read(buffer, offset, length);
+            if (bytesRead == -1) {
+                mEndOfStream = true;
+            } else {
+                mBytesRead += bytesRead;
+            }
+            return bytesRead;
+        }
+
+        /**
+         * Returns the bytes left until Content-Length, -1 if it is unknown or was exceeded.
+         */
+        long getRemaining() {
+            return mContentLength >= 0 && mBytesRead <= mContentLength ? mContentLength - mBytesRead : -1;
+        }
+
+        boolean isConsumed() {
+            return mEndOfStream || (mContentLength >= 0 && mBytesRead >= mContentLength);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.thin.downloadmanager;
+
+/**
+ * Latest-value-wins progress slot of a {@link DownloadRequest}. Dispatchers keep overwriting the
+ * values while at most one delivery of the slot is waiting on the callback executor, so a large
+ * download can't flood the callback thread with progress messages.
+ */
+class ProgressUpdate implements Runnable {
+
+    private final DownloadRequest mRequest;
+
+    private long mTotalBytes;
+    private long mDownloadedBytes;
+    private int mProgress;
+
+    /** Whether this slot is already posted and not yet delivered. */
+    private boolean mPending;
+
+    /** Values of the last accepted update, used for the interval and delta checks. */
+    private boolean mAccepted;
+    private long mLastAcceptedNanos;
+    private long mLastAcceptedBytes;
+    private int mLastAcceptedProgress;
+
+    ProgressUpdate(DownloadRequest request) {
+        mRequest = request;
+    }
+
+    /**
+     * Stores a progress value unless it is filtered out by the given thresholds. The final update
+     * of a download is never filtered out.
+     *
+     * @return true if the caller has to post this slot, false if it was filtered out or is already pending
+     */
+    synchronized boolean offer(long totalBytes, long downloadedBytes, int progress,
+                               long minIntervalMs, int minPercentDelta, long minBytesDelta) {
+        long now = System.nanoTime();
+        boolean finalUpdate = totalBytes > 0 && downloadedBytes >= totalBytes;
+        if (mAccepted && !finalUpdate) {
+            if (now - mLastAcceptedNanos < minIntervalMs * 1000000L) {
+                return false;
+            }
+            if ((minPercentDelta > 0 || minBytesDelta > 0)
+                    && !(minPercentDelta > 0 && progress - mLastAcceptedProgress >= minPercentDelta)
+                    && !(minBytesDelta > 0 && downloadedBytes - mLastAcceptedBytes >= minBytesDelta)) {
+                return false;
+            }
+        }
+        mAccepted = true;
+        mLastAcceptedNanos = now;
+        mLastAcceptedBytes = downloadedBytes;
+        mLastAcceptedProgress = progress;
+
+        mTotalBytes = totalBytes;
+        mDownloadedBytes = downloadedBytes;
+        mProgress = progress;
+        if (mPending) {
+            return false;
+        }
+        mPending = true;
+        return true;
+    }
+
+    @Override
+    public void run() {
+        long totalBytes;
+        long downloadedBytes;
+        int progress;
+        synchronized (this) {
+            totalBytes = mTotalBytes;
+            downloadedBytes = mDownloadedBytes;
+            progress = mProgress;
+            mPending = false;
+        }
+        deliver(mRequest, totalBytes, downloadedBytes, progress);
+        for (DownloadRequest follower : mRequest.getFollowers()) {
+            deliver(follower, totalBytes, downloadedBytes, progress);
+        }
+    }
+
+    private static void deliver(DownloadRequest request, long totalBytes, long downloadedBytes, int progress) {
+        if (request.getDownloadListener() != null) {
+            request.getDownloadListener().onProgress(request.getDownloadId(), totalBytes, downloadedBytes, progress);
+        }
+        if (request.getStatusListener() != null) {
+            request.getStatusListener().onProgress(request, totalBytes, downloadedBytes, progress);
+        }
+        if (request.getGroup() != null) {
+            request.getGroup().onProgress(request.getGroupIndex(), totalBytes, downloadedBytes);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.thin.downloadmanager;
+
+/**
+ * Token bucket used to cap the bandwidth of the downloads. The bucket holds up to one second
+ * worth of bytes; callers reserve the bytes they just read and wait for the returned time, which
+ * lets a reservation run into debt so several threads sharing a limiter queue up behind each other.
+ * The rate can be changed at any time.
+ */
+class RateLimiter {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /** Allowed bytes per second, 0 for unlimited. */
+    private long mBytesPerSecond;
+
+    /** Available bytes, negative while callers are waiting for their reservation. */
+    private double mTokens;
+
+    private long mLastRefillNanos;
+
+    RateLimiter(long bytesPerSecond) {
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    synchronized void setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        mTokens = Math.min(mTokens, bytesPerSecond);
+        mLastRefillNanos = System.nanoTime();
+    }
+
+    synchronized long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Takes the given number of bytes from the bucket.
+     *
+     * @return nanoseconds the caller has to wait before using the bytes, 0 if it may go on right away
+     */
+    synchronized long reserve(int bytes) {
+        if (mBytesPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        mTokens = Math.min(mBytesPerSecond, mTokens + (now - mLastRefillNanos) * (double) mBytesPerSecond / NANOS_PER_SECOND);
+        mLastRefillNanos = now;
+        mTokens -= bytes;
+        if (mTokens >= 0) {
+            return 0;
+        }
+        return (long) (-mTokens * NANOS_PER_SECOND / mBytesPerSecond);
+    }
+}
@@ -0,0 +1,165 @@
+package com.thin.downloadmanager;
+
+import com.thin.downloadmanager.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Response validators of a partially downloaded file, kept in a small file next to the
+ * destination. A later resume sends them in If-Range so the server only returns the remaining
+ * bytes when the resource hasn't changed in the meantime. While the file is preallocated, its
+ * length says nothing about the downloaded bytes, the valid length is stored here as well.
+ */
+final class ResumeMetadata {
+
+    private static final String SUFFIX = ".resume";
+
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_COMMITTED = "committed";
+
+    private ResumeMetadata() {
+    }
+
+    /**
+     * Loads the stored validators into the request, unless it already carries some.
+     */
+    static void load(DownloadRequest request) {
+        if (request.getETag() != null || request.getLastModified() != null) {
+            return;
+        }
+        File file = getFile(request);
+        if (!file.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+            request.setValidators(properties.getProperty(KEY_ETAG), properties.getProperty(KEY_LAST_MODIFIED));
+        } catch (IOException e) {
+            Log.e("ThinDownloadManager", "Failed to read resume metadata for Download Id " + request.getDownloadId(), e);
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static void save(DownloadRequest request) {
+        save(request, -1);
+    }
+
+    /**
+     * Stores the validators of the request and, for a preallocated file, how many of its bytes are
+     * valid. With a committed length the file is synced, it has to be on disk before the
+     * destination grows.
+     *
+     * @param committedBytes - valid bytes of the destination file, -1 when its length is accurate
+     */
+    static void save(DownloadRequest request, long committedBytes) {
+        if (request.getETag() == null && request.getLastModified() == null && committedBytes < 0) {
+            delete(request);
+            return;
+        }
+        Properties properties = new Properties();
+        if (request.getETag() != null) {
+            properties.setProperty(KEY_ETAG, request.getETag());
+        }
+        if (request.getLastModified() != null) {
+            properties.setProperty(KEY_LAST_MODIFIED, request.getLastModified());
+        }
+        if (committedBytes >= 0) {
+            properties.setProperty(KEY_COMMITTED, String.valueOf(committedBytes));
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(getFile(request));
+            properties.store(out, null);
+            if (committedBytes >= 0) {
+                out.getFD().sync();
+            }
+        } catch (IOException e) {
+            Log.e("ThinDownloadManager", "Failed to write resume metadata for Download Id " + request.getDownloadId(), e);
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns the valid length stored for a preallocated destination, -1 if there is none and the
+     * file length can be trusted.
+     */
+    static long loadCommitted(DownloadRequest request) {
+        File file = getFile(request);
+        if (!file.exists()) {
+            return -1;
+        }
+        Properties properties = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+            String committed = properties.getProperty(KEY_COMMITTED);
+            return committed == null ? -1 : Long.parseLong(committed);
+        } catch (IOException | NumberFormatException e) {
+            Log.e("ThinDownloadManager", "Failed to read resume metadata for Download Id " + request.getDownloadId(), e);
+            // Nothing says which bytes are valid.
+            return 0;
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static void delete(DownloadRequest request) {
+        File file = getFile(request);
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Returns the value of the If-Range header for a resume, null if nothing usable was stored.
+     * Weak entity tags can't be used in If-Range, the last modified date is sent instead.
+     */
+    static String getIfRange(DownloadRequest request) {
+        String eTag = request.getETag();
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return request.getLastModified();
+    }
+
+    /**
+     * Returns false if the validators of a partial response show that it belongs to another
+     * version of the resource than the stored ones.
+     */
+    static boolean matches(DownloadRequest request, String eTag, String lastModified) {
+        if (request.getETag() != null && eTag != null) {
+            return request.getETag().equals(eTag);
+        }
+        if (request.getLastModified() != null && lastModified != null) {
+            return request.getLastModified().equals(lastModified);
+        }
+        return true;
+    }
+
+    private static File getFile(DownloadRequest request) {
+        return new File(request.getDestinationURI().getPath() + SUFFIX);
+    }
+}
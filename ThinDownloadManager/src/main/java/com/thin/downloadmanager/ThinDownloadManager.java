@@ -1,10 +1,15 @@
 package com.thin.downloadmanager;
 
 import android.os.Handler;
+import android.os.Looper;
 
 import com.thin.downloadmanager.util.Log;
 
+import java.io.File;
 import java.security.InvalidParameterException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * This class used to handles long-running HTTP downloads, User can raise a {@link DownloadRequest} request with multiple features.
@@ -62,6 +67,31 @@ public class ThinDownloadManager implements DownloadManager {
         setLoggingEnabled(true);
     }
 
+    /**
+     * Construct running the downloads on the given executor, see
+     * {@link DownloadRequestQueue#DownloadRequestQueue(Handler, Executor, int)}.
+     * Callbacks are posted to the main thread.
+     *
+     * @param executor - executor running the downloads, e.g. a virtual thread per task executor
+     * @param maxConcurrentDownloads - number of downloads running at the same time
+     */
+    public ThinDownloadManager(Executor executor, int maxConcurrentDownloads) throws InvalidParameterException {
+        this(new Handler(Looper.getMainLooper()), executor, maxConcurrentDownloads);
+    }
+
+    /**
+     * Construct with provided callback handler, running the downloads on the given executor.
+     *
+     * @param callbackHandler - callback handler
+     * @param executor - executor running the downloads
+     * @param maxConcurrentDownloads - number of downloads running at the same time
+     */
+    public ThinDownloadManager(Handler callbackHandler, Executor executor, int maxConcurrentDownloads) throws InvalidParameterException {
+        mRequestQueue = new DownloadRequestQueue(callbackHandler, executor, maxConcurrentDownloads);
+        mRequestQueue.start();
+        setLoggingEnabled(true);
+    }
+
     /**
      * Add a new download.  The download will start automatically once the download manager is
      * ready to execute it and connectivity is available.
@@ -80,12 +110,46 @@ public class ThinDownloadManager implements DownloadManager {
         return mRequestQueue.add(request);
     }
 
+    /**
+     * Add several downloads as one group. The requests are queued in one step, in the order of
+     * the collection, and the listener gets the aggregate progress and one call once every
+     * download has completed or failed.
+     *
+     * @param requests the downloads of the group
+     * @param listener the group listener, may be null
+     * @return the group handle, its id is used for {@link #cancelGroup(int)}
+     * @throws IllegalArgumentException
+     */
+    public DownloadGroup addAll(Collection<DownloadRequest> requests, DownloadGroupListener listener) throws IllegalArgumentException {
+        checkReleased("addAll(...) called on a released ThinDownloadManager.");
+        if (requests == null || requests.isEmpty()) {
+            throw new IllegalArgumentException("DownloadRequest collection cannot be null or empty");
+        }
+        for (DownloadRequest request : requests) {
+            if (request == null) {
+                throw new IllegalArgumentException("DownloadRequest cannot be null");
+            }
+        }
+        return mRequestQueue.addAll(requests, listener);
+    }
+
     @Override
     public int cancel(int downloadId) {
         checkReleased("cancel(...) called on a released ThinDownloadManager.");
         return mRequestQueue.cancel(downloadId);
     }
 
+    /**
+     * Cancel every download of a group added with {@link #addAll(Collection, DownloadGroupListener)}.
+     *
+     * @param groupId id of the group
+     * @return 1 if the group was found, 0 otherwise
+     */
+    public int cancelGroup(int groupId) {
+        checkReleased("cancelGroup(...) called on a released ThinDownloadManager.");
+        return mRequestQueue.cancelGroup(groupId);
+    }
+
     @Override
     public void cancelAll() {
         checkReleased("cancelAll() called on a released ThinDownloadManager.");
@@ -110,6 +174,253 @@ public class ThinDownloadManager implements DownloadManager {
         return mRequestQueue.query(downloadId);
     }
 
+    /**
+     * Set the size of the buffer used to stream each download, see {@link DownloadRequestQueue#setBufferSize(int)}.
+     *
+     * @param bufferSize - buffer size in bytes
+     */
+    public ThinDownloadManager setBufferSize(int bufferSize) {
+        checkReleased("setBufferSize(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setBufferSize(bufferSize);
+        return this;
+    }
+
+    /**
+     * Switch the downloads to the NIO channel transfer path, see {@link DownloadRequestQueue#setChannelTransferEnabled(boolean)}.
+     *
+     * @param enabled - true to transfer through channels
+     */
+    public ThinDownloadManager setChannelTransferEnabled(boolean enabled) {
+        checkReleased("setChannelTransferEnabled(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setChannelTransferEnabled(enabled);
+        return this;
+    }
+
+    /**
+     * Reserve destination files before writing them, see {@link DownloadRequestQueue#setPreallocationEnabled(boolean)}.
+     *
+     * @param enabled - true to preallocate destination files
+     */
+    public ThinDownloadManager setPreallocationEnabled(boolean enabled) {
+        checkReleased("setPreallocationEnabled(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setPreallocationEnabled(enabled);
+        return this;
+    }
+
+    /**
+     * Write downloads to disk on a separate thread, see {@link DownloadRequestQueue#setWritePipelineDepth(int)}.
+     *
+     * @param buffers - buffers between network and disk, 0 to turn the pipeline off
+     */
+    public ThinDownloadManager setWritePipelineDepth(int buffers) {
+        checkReleased("setWritePipelineDepth(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setWritePipelineDepth(buffers);
+        return this;
+    }
+
+    /**
+     * Set how many idle transfer buffers are kept for reuse, see {@link DownloadRequestQueue#setBufferPoolSize(int)}.
+     *
+     * @param maxBuffers - maximum number of pooled buffers
+     */
+    public ThinDownloadManager setBufferPoolSize(int maxBuffers) {
+        checkReleased("setBufferPoolSize(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setBufferPoolSize(maxBuffers);
+        return this;
+    }
+
+    /**
+     * Returns how many downloads reused a pooled transfer buffer.
+     */
+    public long getBufferPoolHits() {
+        checkReleased("getBufferPoolHits() called on a released ThinDownloadManager.");
+        return mRequestQueue.getBufferPoolHits();
+    }
+
+    /**
+     * Returns how many downloads had to allocate a new transfer buffer.
+     */
+    public long getBufferPoolMisses() {
+        checkReleased("getBufferPoolMisses() called on a released ThinDownloadManager.");
+        return mRequestQueue.getBufferPoolMisses();
+    }
+
+    /**
+     * Limits how often progress is reported per download, see {@link DownloadRequestQueue#setProgressInterval(long)}.
+     *
+     * @param minIntervalMs - minimum milliseconds between two progress callbacks
+     */
+    public ThinDownloadManager setProgressInterval(long minIntervalMs) {
+        checkReleased("setProgressInterval(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setProgressInterval(minIntervalMs);
+        return this;
+    }
+
+    /**
+     * Skips progress updates smaller than the given deltas, see {@link DownloadRequestQueue#setProgressDelta(int, long)}.
+     *
+     * @param minPercentDelta - minimum change in percent
+     * @param minBytesDelta - minimum change in bytes
+     */
+    public ThinDownloadManager setProgressDelta(int minPercentDelta, long minBytesDelta) {
+        checkReleased("setProgressDelta(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setProgressDelta(minPercentDelta, minBytesDelta);
+        return this;
+    }
+
+    /**
+     * Limits concurrent downloads against one host, see {@link DownloadRequestQueue#setMaxDownloadsPerHost(int)}.
+     *
+     * @param maxDownloadsPerHost - maximum concurrent downloads per host, 0 for no limit
+     */
+    public ThinDownloadManager setMaxDownloadsPerHost(int maxDownloadsPerHost) {
+        checkReleased("setMaxDownloadsPerHost(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setMaxDownloadsPerHost(maxDownloadsPerHost);
+        return this;
+    }
+
+    /**
+     * Holds back downloads the disk has no room for yet, see {@link DownloadRequestQueue#setSpaceReservationEnabled(boolean)}.
+     *
+     * @param enabled - true to reserve disk space
+     */
+    public ThinDownloadManager setSpaceReservationEnabled(boolean enabled) {
+        checkReleased("setSpaceReservationEnabled(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setSpaceReservationEnabled(enabled);
+        return this;
+    }
+
+    /**
+     * Caps the combined bandwidth of all downloads, see {@link DownloadRequestQueue#setMaxBytesPerSecond(long)}.
+     *
+     * @param maxBytesPerSecond - maximum bytes per second, 0 for no limit
+     */
+    public ThinDownloadManager setMaxBytesPerSecond(long maxBytesPerSecond) {
+        checkReleased("setMaxBytesPerSecond(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setMaxBytesPerSecond(maxBytesPerSecond);
+        return this;
+    }
+
+    /**
+     * Records downloads on disk so they survive the process, see {@link DownloadRequestQueue#setJournalDirectory(File)}.
+     *
+     * @param directory - directory private to the application, null to disable the journal
+     */
+    public ThinDownloadManager setJournalDirectory(File directory) {
+        checkReleased("setJournalDirectory(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setJournalDirectory(directory);
+        return this;
+    }
+
+    /**
+     * Restores and resumes the downloads left in the journal by a previous process,
+     * see {@link DownloadRequestQueue#recover(DownloadStatusListenerV1)}.
+     *
+     * @param statusListener - listener set on every restored request
+     * @return the restored requests
+     */
+    public List<DownloadRequest> recoverDownloads(DownloadStatusListenerV1 statusListener) {
+        checkReleased("recoverDownloads(...) called on a released ThinDownloadManager.");
+        return mRequestQueue.recover(statusListener);
+    }
+
+    /**
+     * Attaches requests for a URI and destination already in flight to the running download,
+     * see {@link DownloadRequestQueue#setCoalesceDuplicates(boolean)}.
+     *
+     * @param coalesce - true to coalesce duplicate requests
+     */
+    public ThinDownloadManager setCoalesceDuplicates(boolean coalesce) {
+        checkReleased("setCoalesceDuplicates(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setCoalesceDuplicates(coalesce);
+        return this;
+    }
+
+    /**
+     * Set the backoff between retries of timed out downloads, see
+     * {@link DownloadRequestQueue#setRetryBackoff(long, long)}.
+     *
+     * @param initialDelayMs - delay before the first retry in milliseconds
+     * @param maxDelayMs - longest delay in milliseconds
+     */
+    public ThinDownloadManager setRetryBackoff(long initialDelayMs, long maxDelayMs) {
+        checkReleased("setRetryBackoff(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setRetryBackoff(initialDelayMs, maxDelayMs);
+        return this;
+    }
+
+    /**
+     * Let the number of downloads running at once follow the measured throughput, see
+     * {@link DownloadRequestQueue#setAdaptiveConcurrency(int, int, long)}.
+     *
+     * @param minConcurrent - lowest limit
+     * @param maxConcurrent - highest limit, at most the number of download threads
+     * @param sampleIntervalMs - time between two throughput samples in milliseconds
+     */
+    public ThinDownloadManager setAdaptiveConcurrency(int minConcurrent, int maxConcurrent, long sampleIntervalMs) {
+        checkReleased("setAdaptiveConcurrency(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setAdaptiveConcurrency(minConcurrent, maxConcurrent, sampleIntervalMs);
+        return this;
+    }
+
+    public ThinDownloadManager disableAdaptiveConcurrency() {
+        checkReleased("disableAdaptiveConcurrency() called on a released ThinDownloadManager.");
+        mRequestQueue.disableAdaptiveConcurrency();
+        return this;
+    }
+
+    public int getConcurrencyLimit() {
+        checkReleased("getConcurrencyLimit() called on a released ThinDownloadManager.");
+        return mRequestQueue.getConcurrencyLimit();
+    }
+
+    /**
+     * Set the transport the downloads use, see {@link DownloadRequestQueue#setHttpStack(HttpStack)}.
+     *
+     * @param httpStack - transport to use
+     */
+    public ThinDownloadManager setHttpStack(HttpStack httpStack) {
+        checkReleased("setHttpStack(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setHttpStack(httpStack);
+        return this;
+    }
+
+    /**
+     * Set the listener receiving the metrics of every finished download, see
+     * {@link DownloadRequestQueue#setMetricsListener(DownloadMetricsListener)}.
+     *
+     * @param listener - metrics listener, null to stop reporting
+     */
+    public ThinDownloadManager setMetricsListener(DownloadMetricsListener listener) {
+        checkReleased("setMetricsListener(...) called on a released ThinDownloadManager.");
+        mRequestQueue.setMetricsListener(listener);
+        return this;
+    }
+
+    /**
+     * Number of downloads waiting for a free download thread.
+     */
+    public int getQueueDepth() {
+        checkReleased("getQueueDepth() called on a released ThinDownloadManager.");
+        return mRequestQueue.getQueueDepth();
+    }
+
+    /**
+     * Number of downloads currently running.
+     */
+    public int getActiveDownloadCount() {
+        checkReleased("getActiveDownloadCount() called on a released ThinDownloadManager.");
+        return mRequestQueue.getActiveDownloadCount();
+    }
+
+    /**
+     * Number of download threads, the most downloads that can run at once.
+     */
+    public int getDispatcherCount() {
+        checkReleased("getDispatcherCount() called on a released ThinDownloadManager.");
+        return mRequestQueue.getDispatcherCount();
+    }
+
     @Override
     public void release() {
         if (!isReleased()) {
@@ -0,0 +1,105 @@
+package com.thin.downloadmanager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tells which volume a destination directory is on, {@link File} offers no volume id. The
+ * volume is the mount point holding the directory, read from the mount table of the process.
+ * Where the mount table can't be read the volume is identified by its total size, volumes of the
+ * same size are then taken for one, which only makes space reservations more cautious. Every
+ * lookup touches the file system, callers must not hold a lock other threads wait on.
+ */
+class VolumeResolver {
+
+    /** Volume of each destination directory seen so far. */
+    private final ConcurrentHashMap<File, String> mVolumes = new ConcurrentHashMap<>();
+
+    /** Mount points of the file system, longest first, read on the first lookup. */
+    private volatile List<String> mMountPoints;
+
+    /**
+     * Returns the nearest existing directory of the destination of the request.
+     */
+    static File getDirectory(DownloadRequest request) {
+        File directory = new File(request.getDestinationURI().getPath()).getAbsoluteFile();
+        while (directory.getParentFile() != null && !directory.exists()) {
+            directory = directory.getParentFile();
+        }
+        return directory;
+    }
+
+    String getVolume(File directory) {
+        String volume = mVolumes.get(directory);
+        if (volume == null) {
+            volume = findVolume(directory);
+            mVolumes.put(directory, volume);
+        }
+        return volume;
+    }
+
+    private String findVolume(File directory) {
+        List<String> mountPoints = mMountPoints;
+        if (mountPoints == null) {
+            mountPoints = readMountPoints();
+            mMountPoints = mountPoints;
+        }
+        if (!mountPoints.isEmpty()) {
+            String path;
+            try {
+                path = directory.getCanonicalPath();
+            } catch (IOException e) {
+                path = directory.getAbsolutePath();
+            }
+            for (String mountPoint : mountPoints) {
+                if (path.equals(mountPoint) || path.startsWith(mountPoint.endsWith("/") ? mountPoint : mountPoint + "/")) {
+                    return mountPoint;
+                }
+            }
+        }
+        return "size:" + directory.getTotalSpace();
+    }
+
+    /**
+     * Reads the mount points from the mount table of the process, longest first so the first
+     * prefix match is the innermost mount.
+     */
+    private static List<String> readMountPoints() {
+        List<String> mountPoints = new ArrayList<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/mounts"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length > 1) {
+                    // Blanks and the like are octal escaped.
+                    mountPoints.add(fields[1].replace("\\040", " ").replace("\\011", "\t")
+                            .replace("\\012", "\n").replace("\\134", "\\"));
+                }
+            }
+        } catch (IOException e) {
+            mountPoints.clear();
+        } finally {
+            try {
+                if (reader != null) reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        Collections.sort(mountPoints, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return b.length() - a.length();
+            }
+        });
+        return mountPoints;
+    }
+}
@@ -0,0 +1,114 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BrokenResponseTest {
+
+    private static final String ETAG = "\"v1\"";
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mData = new byte[4 * SEGMENT_SIZE];
+    private TestServer mServer;
+    private ThinDownloadManager mDownloadManager;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(19).nextBytes(mData);
+        mServer = new TestServer(mData, ETAG);
+        mDownloadManager = new ThinDownloadManager(1).setRetryBackoff(10, 10);
+        mDestination = new File(mFolder.getRoot(), "file");
+    }
+
+    @After
+    public void tearDown() {
+        mDownloadManager.release();
+        mServer.shutdown();
+    }
+
+    private Integer download(int segmentCount, int maxRetries) throws InterruptedException {
+        TestListener listener = new TestListener(1);
+        mDownloadManager.add(new DownloadRequest(Uri.parse(mServer.getUrl()))
+                .setDestinationURI(Uri.parse(mDestination.getPath()))
+                .setSegmentCount(segmentCount)
+                .setMinSegmentSize(SEGMENT_SIZE)
+                .setRetryPolicy(new DefaultRetryPolicy(5000, maxRetries, 1f))
+                .setDownloadContext("file")
+                .setStatusListener(listener));
+        assertTrue(listener.await());
+        return listener.getOutcome("file");
+    }
+
+    @Test
+    public void brokenResponseResumesFromTheWrittenBytes() throws Exception {
+        mServer.setTruncateAfter(10000, 1);
+
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download(1, 1));
+
+        assertArrayEquals(mData, readFile());
+        assertEquals(Arrays.asList("bytes=0-", "bytes=10000-"), mServer.getHeaders("Range"));
+        assertEquals(Collections.singletonList(ETAG), mServer.getHeaders("If-Range"));
+    }
+
+    @Test
+    public void brokenResponseFailsOnceTheRetriesAreUsedUp() throws Exception {
+        mServer.setTruncateAfter(10000);
+
+        assertEquals(Integer.valueOf(DownloadManager.ERROR_HTTP_DATA_ERROR), download(1, 2));
+        // The first attempt and two resumes.
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void brokenSegmentRetriesTheRestOfItsRange() throws Exception {
+        // Breaks the first response, which the first segment reads on.
+        mServer.setTruncateAfter(10000, 1);
+
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download(4, 1));
+
+        assertArrayEquals(mData, readFile());
+        // One request for each segment plus the retry of the first.
+        assertEquals(5, mServer.getRequestCount());
+        assertTrue(mServer.getHeaders("Range").contains("bytes=10000-" + (SEGMENT_SIZE - 1)));
+        // The retry stays on the version of the first response like the other segments.
+        assertEquals(Arrays.asList(ETAG, ETAG, ETAG, ETAG), mServer.getHeaders("If-Range"));
+    }
+
+    @Test
+    public void brokenSegmentsShareTheRetryBudget() throws Exception {
+        mServer.setTruncateAfter(10000);
+
+        assertEquals(Integer.valueOf(DownloadManager.ERROR_HTTP_DATA_ERROR), download(4, 2));
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile accessFile = new RandomAccessFile(mDestination, "r");
+        try {
+            byte[] data = new byte[(int) accessFile.length()];
+            accessFile.readFully(data);
+            return data;
+        } finally {
+            accessFile.close();
+        }
+    }
+}
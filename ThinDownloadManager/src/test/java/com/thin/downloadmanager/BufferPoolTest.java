@@ -0,0 +1,71 @@
+package com.thin.downloadmanager;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+    @Test
+    public void releasedBufferIsHandedOutAgainCleared() {
+        BufferPool pool = new BufferPool(2, 1024);
+        ByteBuffer buffer = pool.acquire(false);
+        buffer.put((byte) 1);
+        pool.release(buffer);
+
+        ByteBuffer reused = pool.acquire(false);
+
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+    }
+
+    @Test
+    public void heapAndDirectBuffersAreKeptApart() {
+        BufferPool pool = new BufferPool(1, 1024);
+        ByteBuffer heap = pool.acquire(false);
+        ByteBuffer direct = pool.acquire(true);
+        pool.release(heap);
+        pool.release(direct);
+
+        // Asking for one kind leaves the idle buffer of the other kind in the pool.
+        assertSame(direct, pool.acquire(true));
+        assertSame(heap, pool.acquire(false));
+        assertEquals(2, pool.getHitCount());
+    }
+
+    @Test
+    public void fullPoolDropsReleasedBuffers() {
+        BufferPool pool = new BufferPool(1, 1024);
+        ByteBuffer first = pool.acquire(false);
+        ByteBuffer second = pool.acquire(false);
+        pool.release(first);
+        pool.release(second);
+
+        assertSame(first, pool.acquire(false));
+        assertNotSame(second, pool.acquire(false));
+        assertEquals(3, pool.getMissCount());
+    }
+
+    @Test
+    public void buffersOfAnOldSizeAreDropped() {
+        BufferPool pool = new BufferPool(2, 1024);
+        ByteBuffer old = pool.acquire(true);
+        pool.setBufferSize(2048);
+        pool.release(old);
+
+        ByteBuffer buffer = pool.acquire(true);
+
+        assertNotSame(old, buffer);
+        assertEquals(2048, buffer.capacity());
+        assertTrue(buffer.isDirect());
+        assertFalse(pool.acquire(false).isDirect());
+    }
+}
@@ -0,0 +1,103 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelTransferTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mData = new byte[300000];
+    private TestServer mServer;
+    private ThinDownloadManager mDownloadManager;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(7).nextBytes(mData);
+        mServer = new TestServer(mData, "\"v1\"");
+        // Not a divisor of the file size, so the last buffer is a partial one.
+        mDownloadManager = new ThinDownloadManager(1).setBufferSize(7000);
+        mDestination = new File(mFolder.getRoot(), "file");
+    }
+
+    @After
+    public void tearDown() {
+        mDownloadManager.release();
+        mServer.shutdown();
+    }
+
+    private void download(boolean resumable) throws InterruptedException {
+        TestListener listener = new TestListener(1);
+        mDownloadManager.add(new DownloadRequest(Uri.parse(mServer.getUrl()))
+                .setDestinationURI(Uri.parse(mDestination.getPath()))
+                .setDownloadResumable(resumable)
+                .setDownloadContext("file")
+                .setStatusListener(listener));
+        assertTrue(listener.await());
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), listener.getOutcome("file"));
+    }
+
+    @Test
+    public void streamLoopWritesTheWholeFile() throws Exception {
+        download(false);
+
+        assertArrayEquals(mData, readFile());
+    }
+
+    @Test
+    public void channelTransferWritesTheWholeFile() throws Exception {
+        mDownloadManager.setChannelTransferEnabled(true);
+
+        download(false);
+
+        assertArrayEquals(mData, readFile());
+    }
+
+    @Test
+    public void channelTransferResumesAtTheEndOfThePartialFile() throws Exception {
+        mDownloadManager.setChannelTransferEnabled(true);
+        RandomAccessFile accessFile = new RandomAccessFile(mDestination, "rw");
+        try {
+            accessFile.write(mData, 0, 100000);
+        } finally {
+            accessFile.close();
+        }
+
+        download(true);
+
+        assertEquals("bytes=100000-", mServer.getHeaders("Range").get(0));
+        assertArrayEquals(mData, readFile());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bufferSizeMustBePositive() {
+        mDownloadManager.setBufferSize(0);
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile accessFile = new RandomAccessFile(mDestination, "r");
+        try {
+            byte[] data = new byte[(int) accessFile.length()];
+            accessFile.readFully(data);
+            return data;
+        } finally {
+            accessFile.close();
+        }
+    }
+}
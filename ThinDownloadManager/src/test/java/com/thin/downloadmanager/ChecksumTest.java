@@ -0,0 +1,128 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChecksumTest {
+
+    private static final int PARTIAL = 100000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mData = new byte[300000];
+    private String mSha256;
+    private TestServer mServer;
+    private ThinDownloadManager mDownloadManager;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(11).nextBytes(mData);
+        mSha256 = toHex(MessageDigest.getInstance("SHA-256").digest(mData));
+        mServer = new TestServer(mData, "\"v1\"");
+        mDownloadManager = new ThinDownloadManager(1);
+        mDestination = new File(mFolder.getRoot(), "file");
+    }
+
+    @After
+    public void tearDown() {
+        mDownloadManager.release();
+        mServer.shutdown();
+    }
+
+    private DownloadRequest newRequest(String expectedChecksum) {
+        return new DownloadRequest(Uri.parse(mServer.getUrl()))
+                .setDestinationURI(Uri.parse(mDestination.getPath()))
+                .setExpectedChecksum(DownloadRequest.ChecksumType.SHA256, expectedChecksum)
+                .setDownloadContext("file");
+    }
+
+    private Integer download(DownloadRequest request) throws InterruptedException {
+        TestListener listener = new TestListener(1);
+        mDownloadManager.add(request.setStatusListener(listener));
+        assertTrue(listener.await());
+        return listener.getOutcome("file");
+    }
+
+    @Test
+    public void digestMatchesKnownValues() {
+        byte[] abc = "abc".getBytes();
+        DownloadDigest md5 = new DownloadDigest(DownloadRequest.ChecksumType.MD5);
+        md5.update(abc, 0, abc.length);
+        DownloadDigest crc32 = new DownloadDigest(DownloadRequest.ChecksumType.CRC32);
+        // A direct buffer has no array to hand over.
+        ByteBuffer buffer = ByteBuffer.allocateDirect(abc.length);
+        buffer.put(abc).flip();
+        crc32.update(buffer);
+
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", md5.toHex());
+        assertEquals("352441c2", crc32.toHex());
+        assertEquals(3, crc32.getLength());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void matchingChecksumCompletes() throws Exception {
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download(newRequest(mSha256)));
+    }
+
+    @Test
+    public void matchingChecksumCompletesOverChannels() throws Exception {
+        mDownloadManager.setChannelTransferEnabled(true);
+
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download(newRequest(mSha256.toUpperCase())));
+    }
+
+    @Test
+    public void segmentedDownloadIsVerifiedOnceFinished() throws Exception {
+        DownloadRequest request = newRequest(mSha256).setSegmentCount(3).setMinSegmentSize(64 * 1024);
+
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download(request));
+    }
+
+    @Test
+    public void resumeHashesThePartialFileFirst() throws Exception {
+        RandomAccessFile accessFile = new RandomAccessFile(mDestination, "rw");
+        try {
+            accessFile.write(mData, 0, PARTIAL);
+        } finally {
+            accessFile.close();
+        }
+
+        DownloadRequest request = newRequest(mSha256).setDownloadResumable(true);
+
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download(request));
+    }
+
+    @Test
+    public void mismatchFailsAndRemovesTheFile() throws Exception {
+        String wrong = mSha256.substring(1) + (mSha256.charAt(0) == '0' ? '1' : '0');
+
+        assertEquals(Integer.valueOf(DownloadManager.ERROR_CHECKSUM_MISMATCH), download(newRequest(wrong)));
+        assertFalse(mDestination.exists());
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
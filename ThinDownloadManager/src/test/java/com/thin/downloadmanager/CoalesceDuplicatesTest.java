@@ -0,0 +1,95 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoalesceDuplicatesTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DownloadRequest newRequest(String url, File destination) {
+        return new DownloadRequest(Uri.parse(url)).setDestinationURI(Uri.parse(destination.getPath()));
+    }
+
+    @Test
+    public void duplicateTakesTheIdOfTheRunningRequest() {
+        // Never started, the requests stay in flight.
+        DownloadRequestQueue requestQueue = new DownloadRequestQueue(1);
+        try {
+            requestQueue.setCoalesceDuplicates(true);
+            File destination = new File(mFolder.getRoot(), "file");
+            DownloadRequest primary = newRequest("http://fake/file", destination);
+            DownloadRequest duplicate = newRequest("http://fake/file", destination);
+            DownloadRequest other = newRequest("http://fake/file", new File(mFolder.getRoot(), "other"));
+
+            int downloadId = requestQueue.add(primary);
+
+            assertEquals(downloadId, requestQueue.add(duplicate));
+            assertEquals(downloadId, duplicate.getDownloadId());
+            assertTrue(primary.getFollowers().contains(duplicate));
+            assertNotEquals(downloadId, requestQueue.add(other));
+        } finally {
+            requestQueue.release();
+        }
+    }
+
+    @Test
+    public void finishedRequestTakesNoMoreFollowers() {
+        DownloadRequestQueue requestQueue = new DownloadRequestQueue(1);
+        try {
+            requestQueue.setCoalesceDuplicates(true);
+            File destination = new File(mFolder.getRoot(), "file");
+            DownloadRequest primary = newRequest("http://fake/file", destination);
+            int downloadId = requestQueue.add(primary);
+            primary.closeFollowers();
+
+            DownloadRequest later = newRequest("http://fake/file", destination);
+
+            assertNotEquals(downloadId, requestQueue.add(later));
+            assertFalse(primary.getFollowers().contains(later));
+        } finally {
+            requestQueue.release();
+        }
+    }
+
+    @Test
+    public void duplicatesShareOneTransfer() throws Exception {
+        byte[] data = new byte[25000];
+        new Random(10).nextBytes(data);
+        TestServer server = new TestServer(data, "\"v1\"");
+        ThinDownloadManager downloadManager = new ThinDownloadManager(2).setCoalesceDuplicates(true);
+        try {
+            File destination = new File(mFolder.getRoot(), "file");
+            TestListener listener = new TestListener(2);
+            // Slow enough for the duplicate to arrive while the first one is running.
+            downloadManager.add(newRequest(server.getUrl(), destination)
+                    .setMaxBytesPerSecond(50000)
+                    .setDownloadContext("first")
+                    .setStatusListener(listener));
+            downloadManager.add(newRequest(server.getUrl(), destination)
+                    .setDownloadContext("second")
+                    .setStatusListener(listener));
+
+            assertTrue(listener.await());
+            assertEquals(Integer.valueOf(TestListener.COMPLETED), listener.getOutcome("first"));
+            assertEquals(Integer.valueOf(TestListener.COMPLETED), listener.getOutcome("second"));
+            assertEquals(1, server.getRequestCount());
+            assertEquals(data.length, destination.length());
+        } finally {
+            downloadManager.release();
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConcurrencyControllerTest {
+
+    private DownloadRequestQueue mRequestQueue;
+    private DownloadScheduler mScheduler;
+    private ConcurrencyController mController;
+
+    @Before
+    public void setUp() {
+        // Never started, it only counts the transferred bytes.
+        mRequestQueue = new DownloadRequestQueue(1);
+        mScheduler = new DownloadScheduler();
+        for (int i = 0; i < 10; i++) {
+            DownloadRequest request = new DownloadRequest(Uri.parse("http://fake/file" + i));
+            request.setMetrics(new DownloadMetrics(i, request.getUri().toString()));
+            mScheduler.add(request);
+        }
+        mController = new ConcurrencyController(mRequestQueue, mScheduler, 2, 4);
+    }
+
+    @After
+    public void tearDown() {
+        mRequestQueue.release();
+    }
+
+    /**
+     * Lets the scheduler hand out downloads up to its current limit.
+     */
+    private void fillLimit() throws InterruptedException {
+        while (mScheduler.getActive() < mScheduler.getMaxActive()) {
+            mScheduler.take();
+        }
+    }
+
+    /**
+     * Transfers the bytes over a sample interval and runs the controller.
+     */
+    private void sample(int bytes) throws InterruptedException {
+        mRequestQueue.onBytesTransferred(bytes);
+        Thread.sleep(20);
+        mController.run();
+    }
+
+    @Test
+    public void limitGrowsByOneWhileThroughputImproves() throws InterruptedException {
+        assertEquals(2, mScheduler.getMaxActive());
+        fillLimit();
+        // The first full sample probes upwards.
+        sample(1000);
+        assertEquals(3, mScheduler.getMaxActive());
+        fillLimit();
+        sample(1000000);
+        assertEquals(4, mScheduler.getMaxActive());
+        fillLimit();
+        sample(100000000);
+        // Capped at the maximum.
+        assertEquals(4, mScheduler.getMaxActive());
+    }
+
+    @Test
+    public void limitShrinksByAQuarterWhenThroughputDrops() throws InterruptedException {
+        fillLimit();
+        sample(1000);
+        fillLimit();
+        sample(1000000);
+        assertEquals(4, mScheduler.getMaxActive());
+        fillLimit();
+        sample(1000);
+        assertEquals(3, mScheduler.getMaxActive());
+    }
+
+    @Test
+    public void samplesWithoutEnoughWorkAreSkipped() throws InterruptedException {
+        sample(1000);
+        sample(1000000);
+        assertEquals(2, mScheduler.getMaxActive());
+    }
+
+    @Test
+    public void disablingLiftsTheLimit() {
+        DownloadRequestQueue requestQueue = new DownloadRequestQueue(3);
+        try {
+            requestQueue.setAdaptiveConcurrency(1, 2, 60000);
+            assertEquals(1, requestQueue.getConcurrencyLimit());
+
+            requestQueue.disableAdaptiveConcurrency();
+
+            assertEquals(3, requestQueue.getConcurrencyLimit());
+        } finally {
+            requestQueue.release();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasedQueueStartsNoController() {
+        mRequestQueue.release();
+
+        mRequestQueue.setAdaptiveConcurrency(1, 1, 60000);
+    }
+}
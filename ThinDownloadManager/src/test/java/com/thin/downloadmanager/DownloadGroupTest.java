@@ -0,0 +1,102 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadGroupTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Group listener recording the final counts and the latest aggregate size.
+     */
+    private static class GroupListener implements DownloadGroupListener {
+        final CountDownLatch mComplete = new CountDownLatch(1);
+        volatile long mTotalBytes;
+        volatile int mSuccessful = -1;
+        volatile int mFailed = -1;
+
+        @Override
+        public void onGroupProgress(DownloadGroup group, long totalBytes, long downloadedBytes) {
+            mTotalBytes = totalBytes;
+        }
+
+        @Override
+        public void onGroupComplete(DownloadGroup group, int successful, int failed) {
+            mSuccessful = successful;
+            mFailed = failed;
+            mComplete.countDown();
+        }
+    }
+
+    @Test
+    public void cancelledGroupFailsTheWaitingMembersRightAway() {
+        // Never started, the members are still waiting when the group is cancelled.
+        DownloadRequestQueue requestQueue = new DownloadRequestQueue(1);
+        try {
+            TestListener listener = new TestListener(3);
+            List<DownloadRequest> requests = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                requests.add(new DownloadRequest(Uri.parse("http://fake/" + i))
+                        .setDownloadContext(i)
+                        .setStatusListener(listener));
+            }
+            GroupListener groupListener = new GroupListener();
+            DownloadGroup group = requestQueue.addAll(requests, groupListener);
+
+            assertEquals(1, requestQueue.cancelGroup(group.getGroupId()));
+
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(DownloadManager.ERROR_DOWNLOAD_CANCELLED), listener.getOutcome(i));
+            }
+            assertEquals(0, groupListener.mSuccessful);
+            assertEquals(3, groupListener.mFailed);
+            // The finished group is forgotten.
+            assertEquals(0, requestQueue.cancelGroup(group.getGroupId()));
+        } finally {
+            requestQueue.release();
+        }
+    }
+
+    @Test
+    public void groupReportsItsProgressAndCompletesOnce() throws Exception {
+        byte[] data = new byte[50000];
+        new Random(13).nextBytes(data);
+        TestServer server = new TestServer(data, "\"v1\"");
+        ThinDownloadManager downloadManager = new ThinDownloadManager(2);
+        try {
+            GroupListener groupListener = new GroupListener();
+            DownloadGroup group = downloadManager.addAll(Arrays.asList(
+                    new DownloadRequest(Uri.parse(server.getUrl()))
+                            .setDestinationURI(Uri.parse(new File(mFolder.getRoot(), "first").getPath())),
+                    new DownloadRequest(Uri.parse(server.getUrl()))
+                            .setDestinationURI(Uri.parse(new File(mFolder.getRoot(), "second").getPath()))),
+                    groupListener);
+
+            assertTrue(groupListener.mComplete.await(30, TimeUnit.SECONDS));
+            assertEquals(2, groupListener.mSuccessful);
+            assertEquals(0, groupListener.mFailed);
+            assertEquals(2 * data.length, groupListener.mTotalBytes);
+            assertEquals(2 * data.length, group.getDownloadedBytes());
+            assertTrue(group.isFinished());
+        } finally {
+            downloadManager.release();
+            server.shutdown();
+        }
+    }
+}
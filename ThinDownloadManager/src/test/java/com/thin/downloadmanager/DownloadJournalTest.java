@@ -0,0 +1,170 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DownloadJournal mJournal;
+    private File mDestination;
+
+    /** Runs the entry writes of {@link DownloadJournal#record} when the test says so. */
+    private final List<Runnable> mPendingWrites = new ArrayList<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mPendingWrites.add(command);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        // No interval, every checkpoint reaches the entry.
+        mJournal = new DownloadJournal(mFolder.newFolder("journal"), 0);
+        mDestination = new File(mFolder.getRoot(), "file");
+        RandomAccessFile accessFile = new RandomAccessFile(mDestination, "rw");
+        try {
+            accessFile.setLength(5000);
+        } finally {
+            accessFile.close();
+        }
+    }
+
+    private DownloadRequest newRequest() {
+        return new DownloadRequest(Uri.parse("http://fake/file"))
+                .setDestinationURI(Uri.parse(mDestination.getPath()))
+                .setPriority(DownloadRequest.Priority.HIGH)
+                .setSegmentCount(3)
+                .addCustomHeader("Authorization", "token");
+    }
+
+    private void runPendingWrites() {
+        for (Runnable write : mPendingWrites) {
+            write.run();
+        }
+        mPendingWrites.clear();
+    }
+
+    @Test
+    public void restoreReturnsTheRecordedRequestAtItsCheckpoint() {
+        DownloadRequest request = newRequest();
+        mJournal.record(request, mExecutor);
+        runPendingWrites();
+        request.setValidators("\"v1\"", "Sun, 18 Oct 2026 09:00:00 GMT");
+        mJournal.checkpointNow(request, 2000);
+
+        List<DownloadRequest> restored = mJournal.restore();
+
+        assertEquals(1, restored.size());
+        DownloadRequest copy = restored.get(0);
+        assertEquals(request.getUri(), copy.getUri());
+        assertEquals(request.getDestinationURI(), copy.getDestinationURI());
+        assertEquals(DownloadRequest.Priority.HIGH, copy.getPriority());
+        assertEquals(3, copy.getSegmentCount());
+        assertEquals("token", copy.getCustomHeaders().get("Authorization"));
+        assertTrue(copy.isResumable());
+        assertEquals("\"v1\"", copy.getETag());
+        assertEquals("Sun, 18 Oct 2026 09:00:00 GMT", copy.getLastModified());
+        // The bytes after the checkpoint aren't known to be valid.
+        assertEquals(2000, mDestination.length());
+        assertTrue(mJournal.restore().isEmpty());
+    }
+
+    @Test
+    public void checkpointBeforeTheFirstWriteIsKept() {
+        DownloadRequest request = newRequest();
+        mJournal.record(request, mExecutor);
+        mJournal.checkpointNow(request, 3000);
+        // The entry written for the add comes late and must not replace the newer checkpoint.
+        runPendingWrites();
+
+        mJournal.restore();
+
+        assertEquals(3000, mDestination.length());
+    }
+
+    @Test
+    public void finishedRequestLeavesNoEntry() {
+        DownloadRequest request = newRequest();
+        mJournal.record(request, mExecutor);
+        runPendingWrites();
+        mJournal.remove(request);
+
+        assertTrue(mJournal.restore().isEmpty());
+        assertEquals(5000, mDestination.length());
+    }
+
+    @Test
+    public void olderCheckpointDoesNotReplaceANewerOne() {
+        DownloadRequest request = newRequest();
+        mJournal.record(request, mExecutor);
+        runPendingWrites();
+        mJournal.checkpoint(request, 4000);
+        // A slower segment thread reporting the prefix it saw before the last write.
+        mJournal.checkpoint(request, 2000);
+
+        mJournal.restore();
+
+        assertEquals(4000, mDestination.length());
+    }
+
+    @Test
+    public void concurrentCheckpointsKeepTheLargestLength() throws Exception {
+        final DownloadRequest request = newRequest();
+        mJournal.record(request, mExecutor);
+        runPendingWrites();
+        final AtomicLong largest = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final Random random = new Random(i);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 50; j++) {
+                        long bytes = 1 + random.nextInt(4999);
+                        long current;
+                        do {
+                            current = largest.get();
+                        } while (bytes > current && !largest.compareAndSet(current, bytes));
+                        mJournal.checkpoint(request, bytes);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        mJournal.restore();
+
+        assertEquals(largest.get(), mDestination.length());
+    }
+}
@@ -0,0 +1,114 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadMetricsTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mData = new byte[100000];
+    private final BlockingQueue<DownloadMetrics> mReported = new LinkedBlockingQueue<>();
+    private TestServer mServer;
+    private ThinDownloadManager mDownloadManager;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(20).nextBytes(mData);
+        mServer = new TestServer(mData, "\"v1\"");
+        mDownloadManager = new ThinDownloadManager(1)
+                .setRetryBackoff(10, 10)
+                .setMetricsListener(new DownloadMetricsListener() {
+                    @Override
+                    public void onDownloadMetrics(DownloadMetrics metrics) {
+                        mReported.add(metrics);
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mDownloadManager.release();
+        mServer.shutdown();
+    }
+
+    private DownloadMetrics download(int maxRetries) throws InterruptedException {
+        int downloadId = mDownloadManager.add(new DownloadRequest(Uri.parse(mServer.getUrl()))
+                .setDestinationURI(Uri.parse(new File(mFolder.getRoot(), "file").getPath()))
+                .setRetryPolicy(new DefaultRetryPolicy(5000, maxRetries, 1f)));
+        DownloadMetrics metrics = mReported.poll(30, TimeUnit.SECONDS);
+        assertNotNull(metrics);
+        assertEquals(downloadId, metrics.getDownloadId());
+        assertEquals(mServer.getUrl(), metrics.getUri());
+        return metrics;
+    }
+
+    @Test
+    public void completedDownloadIsReported() throws Exception {
+        DownloadMetrics metrics = download(0);
+
+        assertTrue(metrics.isSuccessful());
+        assertEquals(0, metrics.getErrorCode());
+        assertEquals(mData.length, metrics.getBytesTransferred());
+        assertEquals(0, metrics.getRetryCount());
+        assertTrue(metrics.getTimeToFirstByteMs() >= metrics.getConnectMs());
+        assertTrue(metrics.getTotalMs() >= metrics.getQueueWaitMs() + metrics.getTransferMs());
+        assertTrue(metrics.getAverageBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void resumedDownloadCountsTheRetry() throws Exception {
+        mServer.setTruncateAfter(30000, 1);
+
+        DownloadMetrics metrics = download(1);
+
+        assertTrue(metrics.isSuccessful());
+        assertEquals(1, metrics.getRetryCount());
+        assertEquals(mData.length, metrics.getBytesTransferred());
+    }
+
+    @Test
+    public void failedDownloadReportsItsError() throws Exception {
+        mServer.setTruncateAfter(30000);
+
+        DownloadMetrics metrics = download(0);
+
+        assertFalse(metrics.isSuccessful());
+        assertEquals(DownloadManager.ERROR_HTTP_DATA_ERROR, metrics.getErrorCode());
+    }
+
+    @Test
+    public void onlyTheFirstOutcomeCounts() {
+        DownloadMetrics metrics = new DownloadMetrics(1, "http://fake/file");
+
+        assertTrue(metrics.onFinished(0));
+        assertFalse(metrics.onFinished(DownloadManager.ERROR_DOWNLOAD_CANCELLED));
+
+        assertTrue(metrics.isSuccessful());
+    }
+
+    @Test
+    public void gaugesOfAnIdleManager() {
+        assertEquals(1, mDownloadManager.getDispatcherCount());
+        assertEquals(0, mDownloadManager.getQueueDepth());
+        assertEquals(0, mDownloadManager.getActiveDownloadCount());
+    }
+}
@@ -0,0 +1,89 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadRequestQueueTest {
+
+    // Never started, the requests stay queued.
+    private DownloadRequestQueue mRequestQueue;
+
+    @Before
+    public void setUp() {
+        mRequestQueue = new DownloadRequestQueue(1);
+    }
+
+    @After
+    public void tearDown() {
+        mRequestQueue.release();
+    }
+
+    private DownloadRequest newRequest() {
+        return new DownloadRequest(Uri.parse("http://fake/file"));
+    }
+
+    @Test
+    public void queryAndCancelFindTheRequestById() {
+        DownloadRequest first = newRequest();
+        DownloadRequest second = newRequest();
+        mRequestQueue.add(first);
+        int downloadId = mRequestQueue.add(second);
+
+        assertEquals(DownloadManager.STATUS_PENDING, mRequestQueue.query(downloadId));
+        assertEquals(1, mRequestQueue.cancel(downloadId));
+        assertTrue(second.isCancelled());
+        assertFalse(first.isCancelled());
+        assertEquals(0, mRequestQueue.cancel(downloadId + 1));
+        assertEquals(DownloadManager.STATUS_NOT_FOUND, mRequestQueue.query(downloadId + 1));
+    }
+
+    @Test
+    public void finishedRequestIsNoLongerFound() {
+        DownloadRequest request = newRequest();
+        int downloadId = mRequestQueue.add(request);
+
+        mRequestQueue.finish(request);
+
+        assertEquals(DownloadManager.STATUS_NOT_FOUND, mRequestQueue.query(downloadId));
+        assertEquals(0, mRequestQueue.cancel(downloadId));
+    }
+
+    @Test
+    public void finishOfAnotherRequestWithTheSameIdKeepsTheEntry() {
+        DownloadRequest request = newRequest();
+        int downloadId = mRequestQueue.add(request);
+        DownloadRequest other = newRequest();
+        other.setDownloadId(downloadId);
+
+        mRequestQueue.finish(other);
+
+        assertEquals(DownloadManager.STATUS_PENDING, mRequestQueue.query(downloadId));
+    }
+
+    @Test
+    public void cancelAllEmptiesTheIndex() {
+        DownloadRequest first = newRequest();
+        DownloadRequest second = newRequest();
+        int firstId = mRequestQueue.add(first);
+        int secondId = mRequestQueue.add(second);
+
+        mRequestQueue.cancelAll();
+
+        assertTrue(first.isCancelled());
+        assertTrue(second.isCancelled());
+        assertEquals(DownloadManager.STATUS_NOT_FOUND, mRequestQueue.query(firstId));
+        assertEquals(DownloadManager.STATUS_NOT_FOUND, mRequestQueue.query(secondId));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void pauseNeedsAResumableRequest() {
+        mRequestQueue.pause(mRequestQueue.add(newRequest()));
+    }
+}
@@ -0,0 +1,67 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class DownloadSchedulerTest {
+
+    private DownloadScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new DownloadScheduler();
+    }
+
+    private DownloadRequest newRequest(String host, String name) {
+        DownloadRequest request = new DownloadRequest(Uri.parse("http://" + host + "/" + name));
+        request.setMetrics(new DownloadMetrics(0, request.getUri().toString()));
+        return request;
+    }
+
+    @Test
+    public void hostsTakeTurnsAndKeepTheirOrder() throws InterruptedException {
+        DownloadRequest a1 = newRequest("a", "a1");
+        DownloadRequest a2 = newRequest("a", "a2");
+        DownloadRequest b1 = newRequest("b", "b1");
+        mScheduler.add(a1);
+        mScheduler.add(a2);
+        mScheduler.add(b1);
+
+        assertSame(a1, mScheduler.take());
+        assertSame(b1, mScheduler.take());
+        assertSame(a2, mScheduler.take());
+    }
+
+    @Test
+    public void higherPriorityGoesFirst() throws InterruptedException {
+        DownloadRequest low = newRequest("a", "low").setPriority(DownloadRequest.Priority.LOW);
+        DownloadRequest high = newRequest("a", "high").setPriority(DownloadRequest.Priority.HIGH);
+        mScheduler.add(low);
+        mScheduler.add(high);
+
+        assertSame(high, mScheduler.take());
+        assertSame(low, mScheduler.take());
+    }
+
+    @Test
+    public void hostLimitLetsOtherHostsRun() throws InterruptedException {
+        mScheduler.setMaxPerHost(1);
+        DownloadRequest a1 = newRequest("a", "a1");
+        DownloadRequest a2 = newRequest("a", "a2");
+        DownloadRequest b1 = newRequest("b", "b1");
+        mScheduler.add(a1);
+        mScheduler.add(a2);
+        mScheduler.add(b1);
+
+        assertSame(a1, mScheduler.take());
+        assertSame(b1, mScheduler.take());
+        assertEquals(1, mScheduler.size());
+        mScheduler.finish(a1);
+        assertSame(a2, mScheduler.take());
+    }
+}
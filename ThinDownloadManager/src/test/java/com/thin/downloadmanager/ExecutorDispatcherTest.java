@@ -0,0 +1,83 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+import android.os.Handler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExecutorDispatcherTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void dispatchersRunOnTheGivenExecutor() throws Exception {
+        byte[] data = new byte[30000];
+        new Random(16).nextBytes(data);
+        TestServer server = new TestServer(data, "\"v1\"");
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+        ThinDownloadManager downloadManager = new ThinDownloadManager(executor, 2);
+        try {
+            TestListener listener = new TestListener(3);
+            for (int i = 0; i < 3; i++) {
+                downloadManager.add(new DownloadRequest(Uri.parse(server.getUrl()))
+                        .setDestinationURI(Uri.parse(new File(mFolder.getRoot(), "file" + i).getPath()))
+                        .setDownloadContext(i)
+                        .setStatusListener(listener));
+            }
+
+            assertTrue(listener.await());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(TestListener.COMPLETED), listener.getOutcome(i));
+            }
+            // One task per dispatcher, not one per download.
+            assertEquals(2, executor.getTaskCount());
+        } finally {
+            downloadManager.release();
+            server.shutdown();
+        }
+
+        // The released dispatchers hand their threads back.
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void dispatcherReleasedBeforeItStartsReturnsRightAway() {
+        // Holds the dispatcher tasks back until the queue is released.
+        final List<Runnable> tasks = new ArrayList<>();
+        DownloadRequestQueue requestQueue = new DownloadRequestQueue(new Handler(), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        }, 2);
+        requestQueue.start();
+        requestQueue.release();
+
+        assertEquals(2, tasks.size());
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    @Test(expected = InvalidParameterException.class)
+    public void concurrencyLimitMustBePositive() {
+        new ThinDownloadManager(Executors.newCachedThreadPool(), 0);
+    }
+}
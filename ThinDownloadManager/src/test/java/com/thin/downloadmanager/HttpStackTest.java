@@ -0,0 +1,103 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpStackTest {
+
+    private static final String URL = "http://fake/file";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mData = new byte[100000];
+    private final Map<String, String> mLastHeaders = new ConcurrentHashMap<>();
+    private FakeHttpStack mFakeStack;
+    private ThinDownloadManager mDownloadManager;
+    private File mDestination;
+
+    @Before
+    public void setUp() {
+        new Random(14).nextBytes(mData);
+        mFakeStack = new FakeHttpStack().addResource(URL, mData, "\"v1\"");
+        HttpStack recordingStack = new HttpStack() {
+            @Override
+            public Response performRequest(URL url, Map<String, String> headers, int timeoutMs) throws IOException {
+                mLastHeaders.clear();
+                mLastHeaders.putAll(headers);
+                return mFakeStack.performRequest(url, headers, timeoutMs);
+            }
+        };
+        mDownloadManager = new ThinDownloadManager(1).setHttpStack(recordingStack);
+        mDestination = new File(mFolder.getRoot(), "file");
+    }
+
+    @After
+    public void tearDown() {
+        mDownloadManager.release();
+    }
+
+    private Integer download(String url) throws InterruptedException {
+        TestListener listener = new TestListener(1);
+        mDownloadManager.add(new DownloadRequest(Uri.parse(url))
+                .setDestinationURI(Uri.parse(mDestination.getPath()))
+                .addCustomHeader("Authorization", "token")
+                .setDownloadContext("file")
+                .setStatusListener(listener));
+        assertTrue(listener.await());
+        return listener.getOutcome("file");
+    }
+
+    @Test
+    public void requestsGoThroughTheStack() throws Exception {
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download(URL));
+
+        assertEquals(1, mFakeStack.getRequestCount());
+        assertEquals("token", mLastHeaders.get("Authorization"));
+        assertEquals("bytes=0-", mLastHeaders.get("Range"));
+        assertArrayEquals(mData, readFile());
+    }
+
+    @Test
+    public void redirectIsFollowedByTheDispatcher() throws Exception {
+        mFakeStack.addRedirect("http://fake/old", URL);
+
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download("http://fake/old"));
+
+        assertEquals(2, mFakeStack.getRequestCount());
+        assertArrayEquals(mData, readFile());
+    }
+
+    @Test
+    public void errorStatusFailsTheDownload() throws Exception {
+        assertEquals(Integer.valueOf(DownloadManager.ERROR_UNHANDLED_HTTP_CODE), download("http://fake/missing"));
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile accessFile = new RandomAccessFile(mDestination, "r");
+        try {
+            byte[] data = new byte[(int) accessFile.length()];
+            accessFile.readFully(data);
+            return data;
+        } finally {
+            accessFile.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.thin.downloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HurlStackTest {
+
+    private final byte[] mData = new byte[20000];
+    private TestServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(15).nextBytes(mData);
+        mServer = new TestServer(mData, "\"v1\"");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    private HttpStack.Response get(HurlStack stack, String url) throws IOException {
+        HttpStack.Response response = stack.performRequest(new URL(url),
+                Collections.<String, String>emptyMap(), 5000);
+        response.getResponseCode();
+        return response;
+    }
+
+    private static void readFully(InputStream in, int bytes) throws IOException {
+        byte[] buffer = new byte[4096];
+        int remaining = bytes;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read == -1) {
+                break;
+            }
+            remaining -= read;
+        }
+    }
+
+    @Test
+    public void fullyReadResponseGoesBackToThePool() throws Exception {
+        HurlStack stack = new HurlStack().setConnectionReuse(true);
+
+        HttpStack.Response response = get(stack, mServer.getUrl());
+        readFully(response.getInputStream(), mData.length);
+        response.disconnect();
+
+        assertEquals(1, stack.getReleasedToPoolCount());
+        assertEquals(0, stack.getDisconnectedCount());
+    }
+
+    @Test
+    public void shortErrorBodyIsDrained() throws Exception {
+        HurlStack stack = new HurlStack().setConnectionReuse(true);
+
+        get(stack, mServer.getUrl().replace("/file", "/missing")).disconnect();
+
+        assertEquals(1, stack.getReleasedToPoolCount());
+    }
+
+    @Test
+    public void largeUnreadRestIsDisconnected() throws Exception {
+        byte[] large = new byte[1 << 20];
+        mServer.replaceAfter(0, large, "\"v2\"");
+        HurlStack stack = new HurlStack().setConnectionReuse(true);
+
+        HttpStack.Response response = get(stack, mServer.getUrl());
+        readFully(response.getInputStream(), 1000);
+        response.disconnect();
+
+        assertEquals(0, stack.getReleasedToPoolCount());
+        assertEquals(1, stack.getDisconnectedCount());
+    }
+
+    @Test
+    public void withoutReuseEveryResponseIsDisconnected() throws Exception {
+        HurlStack stack = new HurlStack();
+
+        HttpStack.Response response = get(stack, mServer.getUrl());
+        readFully(response.getInputStream(), mData.length);
+        response.disconnect();
+
+        assertEquals(0, stack.getReleasedToPoolCount());
+        assertEquals(1, stack.getDisconnectedCount());
+    }
+
+    @Test
+    public void keepAliveSettingsOfTheProcessAreLeftAlone() {
+        new HurlStack().setConnectionReuse(true);
+
+        assertNull(System.getProperty("http.maxConnections"));
+        assertNull(System.getProperty("http.keepAliveDuration"));
+    }
+}
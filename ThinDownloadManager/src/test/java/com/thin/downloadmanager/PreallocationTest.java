@@ -0,0 +1,161 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreallocationTest {
+
+    private static final String ETAG = "\"v1\"";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mData = new byte[100000];
+    private TestServer mServer;
+    private ThinDownloadManager mDownloadManager;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(23).nextBytes(mData);
+        mServer = new TestServer(mData, ETAG);
+        mDownloadManager = new ThinDownloadManager(1).setPreallocationEnabled(true);
+        mDestination = new File(mFolder.getRoot(), "file");
+    }
+
+    @After
+    public void tearDown() {
+        mDownloadManager.release();
+        mServer.shutdown();
+    }
+
+    private DownloadRequest newRequest() {
+        return new DownloadRequest(Uri.parse(mServer.getUrl()))
+                .setDestinationURI(Uri.parse(mDestination.getPath()))
+                .setDownloadContext("file");
+    }
+
+    private Integer download(DownloadRequest request) throws InterruptedException {
+        TestListener listener = new TestListener(1);
+        mDownloadManager.add(request.setStatusListener(listener));
+        assertTrue(listener.await());
+        return listener.getOutcome("file");
+    }
+
+    @Test
+    public void preallocatedDownloadCompletes() throws Exception {
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download(newRequest()));
+
+        assertArrayEquals(mData, readFile());
+    }
+
+    @Test
+    public void stoppedTransferCutsTheFileBack() throws Exception {
+        mServer.setTruncateAfter(10000);
+        DownloadRequest request = newRequest()
+                .setDownloadResumable(true)
+                .setRetryPolicy(new DefaultRetryPolicy(5000, 0, 1f));
+
+        assertEquals(Integer.valueOf(DownloadManager.ERROR_HTTP_DATA_ERROR), download(request));
+
+        assertEquals(10000, mDestination.length());
+        // The file length is accurate again, no stored length overrides it.
+        assertEquals(-1, ResumeMetadata.loadCommitted(request));
+    }
+
+    @Test
+    public void preallocatedFileResumesFromTheStoredLength() throws Exception {
+        // A previous process died while the file was preallocated: full length, 30000 valid bytes.
+        RandomAccessFile accessFile = new RandomAccessFile(mDestination, "rw");
+        try {
+            accessFile.write(mData, 0, 30000);
+            accessFile.setLength(mData.length);
+        } finally {
+            accessFile.close();
+        }
+        DownloadRequest request = newRequest().setDownloadResumable(true);
+        request.setValidators(ETAG, null);
+        ResumeMetadata.save(request, 30000);
+
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download(request));
+
+        assertEquals(Arrays.asList("bytes=30000-"), mServer.getHeaders("Range"));
+        assertArrayEquals(mData, readFile());
+    }
+
+    @Test
+    public void downloadThatCannotFitFailsBeforeTransfer() throws Exception {
+        final FakeHttpStack fakeStack = new FakeHttpStack().addResource("http://fake/file", mData);
+        // Announces more bytes than any volume has room for.
+        mDownloadManager.setHttpStack(new HttpStack() {
+            @Override
+            public Response performRequest(URL url, Map<String, String> headers, int timeoutMs) throws IOException {
+                final Response response = fakeStack.performRequest(url, headers, timeoutMs);
+                return new Response() {
+                    @Override
+                    public int getResponseCode() throws IOException {
+                        return response.getResponseCode();
+                    }
+
+                    @Override
+                    public String getResponseMessage() throws IOException {
+                        return response.getResponseMessage();
+                    }
+
+                    @Override
+                    public String getHeaderField(String name) {
+                        return "Content-Length".equalsIgnoreCase(name) ? String.valueOf(Long.MAX_VALUE / 2)
+                                : response.getHeaderField(name);
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        return response.getInputStream();
+                    }
+
+                    @Override
+                    public void disconnect() {
+                        response.disconnect();
+                    }
+                };
+            }
+        });
+        DownloadRequest request = new DownloadRequest(Uri.parse("http://fake/file"))
+                .setDestinationURI(Uri.parse(mDestination.getPath()))
+                .setDownloadContext("file");
+
+        assertEquals(Integer.valueOf(DownloadManager.ERROR_INSUFFICIENT_SPACE), download(request));
+
+        assertFalse(mDestination.exists() && mDestination.length() > 0);
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile accessFile = new RandomAccessFile(mDestination, "r");
+        try {
+            byte[] data = new byte[(int) accessFile.length()];
+            accessFile.readFully(data);
+            return data;
+        } finally {
+            accessFile.close();
+        }
+    }
+}
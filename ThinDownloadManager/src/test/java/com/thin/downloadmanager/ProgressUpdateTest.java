@@ -0,0 +1,85 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressUpdateTest {
+
+    private static final long TOTAL = 1000;
+
+    /** Downloaded bytes of the delivered progress callbacks. */
+    private final List<Long> mDelivered = new ArrayList<>();
+    private ProgressUpdate mProgressUpdate;
+
+    @Before
+    public void setUp() {
+        DownloadRequest request = new DownloadRequest(Uri.parse("http://fake/file"))
+                .setStatusListener(new DownloadStatusListenerV1() {
+                    @Override
+                    public void onDownloadComplete(DownloadRequest downloadRequest) {
+                    }
+
+                    @Override
+                    public void onDownloadFailed(DownloadRequest downloadRequest, int errorCode, String errorMessage) {
+                    }
+
+                    @Override
+                    public void onProgress(DownloadRequest downloadRequest, long totalBytes, long downloadedBytes, int progress) {
+                        mDelivered.add(downloadedBytes);
+                    }
+                });
+        mProgressUpdate = request.getProgressUpdate();
+    }
+
+    private boolean offer(long downloadedBytes, long minIntervalMs, int minPercentDelta) {
+        return mProgressUpdate.offer(TOTAL, downloadedBytes, (int) (downloadedBytes * 100 / TOTAL),
+                minIntervalMs, minPercentDelta, 0);
+    }
+
+    @Test
+    public void pendingUpdateTakesTheLatestValue() {
+        assertTrue(offer(100, 0, 0));
+        // Already waiting for delivery, nothing more to post.
+        assertFalse(offer(200, 0, 0));
+        assertFalse(offer(300, 0, 0));
+
+        mProgressUpdate.run();
+
+        assertEquals(Arrays.asList(300L), mDelivered);
+        assertTrue(offer(400, 0, 0));
+    }
+
+    @Test
+    public void updatesWithinTheIntervalAreDroppedButNotTheFinalOne() {
+        assertTrue(offer(100, 60000, 0));
+        mProgressUpdate.run();
+
+        assertFalse(offer(500, 60000, 0));
+        assertTrue(offer(TOTAL, 60000, 0));
+        mProgressUpdate.run();
+
+        assertEquals(Arrays.asList(100L, TOTAL), mDelivered);
+    }
+
+    @Test
+    public void updatesBelowThePercentDeltaAreDropped() {
+        assertTrue(offer(100, 0, 10));
+        mProgressUpdate.run();
+
+        assertFalse(offer(150, 0, 10));
+        assertTrue(offer(200, 0, 10));
+        mProgressUpdate.run();
+
+        assertEquals(Arrays.asList(100L, 200L), mDelivered);
+    }
+}
@@ -0,0 +1,71 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void unlimitedNeverWaits() {
+        RateLimiter rateLimiter = new RateLimiter(0);
+
+        assertEquals(0, rateLimiter.reserve(1 << 20));
+    }
+
+    @Test
+    public void reservationsQueueUpBehindEachOther() {
+        RateLimiter rateLimiter = new RateLimiter(1000);
+
+        long firstWait = rateLimiter.reserve(500);
+        long secondWait = rateLimiter.reserve(500);
+
+        assertEquals(500, TimeUnit.NANOSECONDS.toMillis(firstWait), 20);
+        assertEquals(1000, TimeUnit.NANOSECONDS.toMillis(secondWait), 20);
+    }
+
+    @Test
+    public void lowerRateTakesEffectRightAway() {
+        RateLimiter rateLimiter = new RateLimiter(1000000);
+        rateLimiter.setBytesPerSecond(1000);
+
+        assertEquals(1000, TimeUnit.NANOSECONDS.toMillis(rateLimiter.reserve(1000)), 20);
+    }
+
+    @Test
+    public void requestLimitSlowsTheDownloadDown() throws Exception {
+        byte[] data = new byte[25000];
+        new Random(8).nextBytes(data);
+        TestServer server = new TestServer(data, "\"v1\"");
+        ThinDownloadManager downloadManager = new ThinDownloadManager(1);
+        try {
+            TestListener listener = new TestListener(1);
+            long start = System.nanoTime();
+            downloadManager.add(new DownloadRequest(Uri.parse(server.getUrl()))
+                    .setDestinationURI(Uri.parse(new File(mFolder.getRoot(), "file").getPath()))
+                    .setMaxBytesPerSecond(50000)
+                    .setDownloadContext("file")
+                    .setStatusListener(listener));
+
+            assertTrue(listener.await());
+            assertEquals(Integer.valueOf(TestListener.COMPLETED), listener.getOutcome("file"));
+            // Half a second worth of bytes at the limit.
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 450);
+        } finally {
+            downloadManager.release();
+            server.shutdown();
+        }
+    }
+}
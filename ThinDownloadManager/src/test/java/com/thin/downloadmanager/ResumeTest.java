@@ -0,0 +1,139 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResumeTest {
+
+    private static final String ETAG = "\"v1\"";
+    private static final int PARTIAL = 100000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mData = new byte[300000];
+    private TestServer mServer;
+    private ThinDownloadManager mDownloadManager;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(2).nextBytes(mData);
+        mServer = new TestServer(mData, ETAG);
+        mDownloadManager = new ThinDownloadManager(1);
+        mDestination = new File(mFolder.getRoot(), "file");
+    }
+
+    @After
+    public void tearDown() {
+        mDownloadManager.release();
+        mServer.shutdown();
+    }
+
+    private DownloadRequest newRequest() {
+        return new DownloadRequest(Uri.parse(mServer.getUrl()))
+                .setDestinationURI(Uri.parse(mDestination.getPath()))
+                .setDownloadResumable(true)
+                .setDownloadContext("file");
+    }
+
+    private void download(DownloadRequest request) throws InterruptedException {
+        TestListener listener = new TestListener(1);
+        mDownloadManager.add(request.setStatusListener(listener));
+        assertTrue(listener.await());
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), listener.getOutcome("file"));
+    }
+
+    /**
+     * Leaves a partial download of the given version behind, as an earlier run would.
+     */
+    private void writePartial(byte[] data, String eTag) throws IOException {
+        RandomAccessFile accessFile = new RandomAccessFile(mDestination, "rw");
+        try {
+            accessFile.write(data, 0, PARTIAL);
+        } finally {
+            accessFile.close();
+        }
+        DownloadRequest previous = newRequest();
+        previous.setValidators(eTag, null);
+        ResumeMetadata.save(previous);
+    }
+
+    @Test
+    public void resumeAsksForTheRestIfUnchanged() throws Exception {
+        writePartial(mData, ETAG);
+
+        download(newRequest());
+
+        assertEquals(Collections.singletonList("bytes=" + PARTIAL + "-"), mServer.getHeaders("Range"));
+        assertEquals(Collections.singletonList(ETAG), mServer.getHeaders("If-Range"));
+        assertArrayEquals(mData, readFile());
+        // The validators are dropped with the finished download.
+        assertFalse(new File(mDestination.getPath() + ".resume").exists());
+    }
+
+    @Test
+    public void changedResourceStartsOver() throws Exception {
+        byte[] stale = new byte[PARTIAL];
+        new Random(3).nextBytes(stale);
+        writePartial(stale, "\"v0\"");
+
+        download(newRequest());
+
+        // The server sends the whole resource instead of the range of an older version.
+        assertEquals(Collections.singletonList("\"v0\""), mServer.getHeaders("If-Range"));
+        assertArrayEquals(mData, readFile());
+    }
+
+    @Test
+    public void rangeOfAnotherVersionDropsThePartialFile() throws Exception {
+        byte[] stale = new byte[PARTIAL];
+        new Random(3).nextBytes(stale);
+        writePartial(stale, "\"v0\"");
+        mServer.setIgnoreIfRange(true);
+
+        download(newRequest());
+
+        // The first answer is a range of the new version, the download starts over from zero.
+        assertEquals(Arrays.asList("bytes=" + PARTIAL + "-", "bytes=0-"), mServer.getHeaders("Range"));
+        assertArrayEquals(mData, readFile());
+    }
+
+    @Test
+    public void existingFileIsNotResumedByANonResumableRequest() throws Exception {
+        writePartial(mData, ETAG);
+
+        download(newRequest().setDownloadResumable(false));
+
+        assertEquals(Collections.singletonList("bytes=0-"), mServer.getHeaders("Range"));
+        assertArrayEquals(mData, readFile());
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile accessFile = new RandomAccessFile(mDestination, "r");
+        try {
+            byte[] data = new byte[(int) accessFile.length()];
+            accessFile.readFully(data);
+            return data;
+        } finally {
+            accessFile.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetryBackoffTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static DownloadRequest newRequest(TestListener listener) {
+        return new DownloadRequest(Uri.parse("http://fake/file"))
+                .setDownloadContext("file")
+                .setStatusListener(listener);
+    }
+
+    @Test
+    public void delayDoublesUpToTheCapWithJitter() {
+        DownloadRequestQueue requestQueue = new DownloadRequestQueue(1);
+        try {
+            requestQueue.setRetryBackoff(1000, 30000);
+            for (int i = 0; i < 100; i++) {
+                assertBetween(500, 1000, requestQueue.getRetryDelay(1));
+                assertBetween(2000, 4000, requestQueue.getRetryDelay(3));
+                assertBetween(15000, 30000, requestQueue.getRetryDelay(10));
+            }
+        } finally {
+            requestQueue.release();
+        }
+    }
+
+    private static void assertBetween(long min, long max, long value) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+
+    @Test
+    public void retryAfterReleaseFailsAsCancelled() throws Exception {
+        DownloadRequestQueue requestQueue = new DownloadRequestQueue(1);
+        TestListener listener = new TestListener(1);
+        DownloadRequest request = newRequest(listener);
+        requestQueue.add(request);
+        requestQueue.release();
+
+        requestQueue.scheduleRetry(request, 1);
+
+        assertTrue(listener.await());
+        assertEquals(Integer.valueOf(DownloadManager.ERROR_DOWNLOAD_CANCELLED), listener.getOutcome("file"));
+    }
+
+    @Test
+    public void retryWaitingAtReleaseFailsAsCancelled() throws Exception {
+        DownloadRequestQueue requestQueue = new DownloadRequestQueue(1);
+        requestQueue.setRetryBackoff(60000, 60000);
+        TestListener listener = new TestListener(1);
+        DownloadRequest request = newRequest(listener);
+        requestQueue.add(request);
+        requestQueue.scheduleRetry(request, 1);
+
+        requestQueue.release();
+
+        assertTrue(listener.await());
+        assertEquals(Integer.valueOf(DownloadManager.ERROR_DOWNLOAD_CANCELLED), listener.getOutcome("file"));
+    }
+
+    @Test
+    public void timedOutRequestIsRetried() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(18).nextBytes(data);
+        final FakeHttpStack fakeStack = new FakeHttpStack().addResource("http://fake/file", data);
+        final AtomicInteger requests = new AtomicInteger();
+        // The first request times out.
+        HttpStack stack = new HttpStack() {
+            @Override
+            public Response performRequest(URL url, Map<String, String> headers, int timeoutMs) throws IOException {
+                if (requests.incrementAndGet() == 1) {
+                    throw new SocketTimeoutException();
+                }
+                return fakeStack.performRequest(url, headers, timeoutMs);
+            }
+        };
+        ThinDownloadManager downloadManager = new ThinDownloadManager(1).setHttpStack(stack).setRetryBackoff(10, 10);
+        try {
+            TestListener listener = new TestListener(1);
+            downloadManager.add(newRequest(listener)
+                    .setDestinationURI(Uri.parse(new File(mFolder.getRoot(), "file").getPath())));
+
+            assertTrue(listener.await());
+            assertEquals(Integer.valueOf(TestListener.COMPLETED), listener.getOutcome("file"));
+            assertEquals(2, requests.get());
+        } finally {
+            downloadManager.release();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedDownloadTest {
+
+    private static final String ETAG = "\"v1\"";
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mData = new byte[8 * SEGMENT_SIZE];
+    private TestServer mServer;
+    private ThinDownloadManager mDownloadManager;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(mData);
+        mServer = new TestServer(mData, ETAG);
+        mDownloadManager = new ThinDownloadManager(2);
+        mDestination = new File(mFolder.getRoot(), "file");
+    }
+
+    @After
+    public void tearDown() {
+        mDownloadManager.release();
+        mServer.shutdown();
+    }
+
+    private void download() throws InterruptedException {
+        TestListener listener = new TestListener(1);
+        mDownloadManager.add(new DownloadRequest(Uri.parse(mServer.getUrl()))
+                .setDestinationURI(Uri.parse(mDestination.getPath()))
+                .setSegmentCount(4)
+                .setMinSegmentSize(SEGMENT_SIZE)
+                .setDownloadContext("file")
+                .setStatusListener(listener));
+        assertTrue(listener.await());
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), listener.getOutcome("file"));
+    }
+
+    @Test
+    public void segmentsAssembleTheFile() throws Exception {
+        download();
+
+        assertArrayEquals(mData, readFile());
+        // The initial request plus one connection for each further segment.
+        assertEquals(4, mServer.getRequestCount());
+        // Each further segment only takes its range from the version the first response came from.
+        assertEquals(Arrays.asList(ETAG, ETAG, ETAG), mServer.getHeaders("If-Range"));
+    }
+
+    @Test
+    public void changedResourceStartsOver() throws Exception {
+        byte[] changed = newData(5);
+        mServer.replaceAfter(1, changed, "\"v2\"");
+
+        download();
+
+        // The segments got the whole new version instead of their ranges.
+        assertArrayEquals(changed, readFile());
+    }
+
+    @Test
+    public void rangeOfAnotherVersionIsNotWritten() throws Exception {
+        byte[] changed = newData(6);
+        mServer.setIgnoreIfRange(true);
+        mServer.replaceAfter(1, changed, "\"v2\"");
+
+        download();
+
+        assertArrayEquals(changed, readFile());
+    }
+
+    private byte[] newData(int seed) {
+        byte[] data = new byte[mData.length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile accessFile = new RandomAccessFile(mDestination, "r");
+        try {
+            byte[] data = new byte[(int) accessFile.length()];
+            accessFile.readFully(data);
+            return data;
+        } finally {
+            accessFile.close();
+        }
+    }
+}
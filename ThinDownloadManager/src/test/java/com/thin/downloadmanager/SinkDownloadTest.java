@@ -0,0 +1,74 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SinkDownloadTest {
+
+    private final byte[] mData = new byte[300000];
+    private TestServer mServer;
+    private ThinDownloadManager mDownloadManager;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(12).nextBytes(mData);
+        mServer = new TestServer(mData, "\"v1\"");
+        mDownloadManager = new ThinDownloadManager(1);
+    }
+
+    @After
+    public void tearDown() {
+        mDownloadManager.release();
+        mServer.shutdown();
+    }
+
+    private Integer download(DownloadRequest request) throws InterruptedException {
+        TestListener listener = new TestListener(1);
+        mDownloadManager.add(request.setDownloadContext("sink").setStatusListener(listener));
+        assertTrue(listener.await());
+        return listener.getOutcome("sink");
+    }
+
+    @Test
+    public void bodyGoesToTheStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Integer outcome = download(new DownloadRequest(Uri.parse(mServer.getUrl())).setDestinationStream(out));
+
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), outcome);
+        assertArrayEquals(mData, out.toByteArray());
+    }
+
+    @Test
+    public void bodyGoesToTheChannel() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Integer outcome = download(new DownloadRequest(Uri.parse(mServer.getUrl()))
+                .setDestinationChannel(Channels.newChannel(out)));
+
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), outcome);
+        assertArrayEquals(mData, out.toByteArray());
+    }
+
+    @Test
+    public void truncatedBodyFails() throws Exception {
+        mServer.setTruncateAfter(1000);
+
+        Integer outcome = download(new DownloadRequest(Uri.parse(mServer.getUrl()))
+                .setDestinationStream(new ByteArrayOutputStream()));
+
+        assertEquals(Integer.valueOf(DownloadManager.ERROR_HTTP_DATA_ERROR), outcome);
+    }
+}
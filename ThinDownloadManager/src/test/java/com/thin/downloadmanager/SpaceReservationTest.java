@@ -0,0 +1,143 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SpaceReservationTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DownloadScheduler mScheduler;
+    private long mUsable;
+
+    @Before
+    public void setUp() {
+        mScheduler = new DownloadScheduler();
+        mScheduler.setSpaceReservationEnabled(true);
+        mUsable = mFolder.getRoot().getUsableSpace();
+    }
+
+    private DownloadRequest newRequest(String name) {
+        DownloadRequest request = new DownloadRequest(Uri.parse("http://a/" + name))
+                .setDestinationURI(Uri.parse(new File(mFolder.getRoot(), name).getPath()));
+        request.setMetrics(new DownloadMetrics(0, request.getUri().toString()));
+        return request;
+    }
+
+    private DownloadRequest start(String name) throws InterruptedException {
+        DownloadRequest request = newRequest(name);
+        mScheduler.add(request);
+        assertSame(request, mScheduler.take());
+        return request;
+    }
+
+    @Test
+    public void requestWaitingForSpaceIsPassedAndKeepsItsPlace() throws InterruptedException {
+        DownloadRequest running = start("running");
+        assertTrue(mScheduler.reserve(running, mUsable / 2));
+
+        // Doesn't fit next to the running download, goes back once its dispatcher is done.
+        DownloadRequest large = start("large");
+        assertFalse(mScheduler.reserve(large, mUsable));
+        DownloadRequest small = newRequest("small");
+        DownloadRequest later = newRequest("later");
+        mScheduler.add(small);
+        mScheduler.add(later);
+        mScheduler.finish(large);
+        assertEquals(3, mScheduler.size());
+
+        // The large request heads its host but can't run yet, the small one behind it can.
+        assertSame(small, mScheduler.take());
+        mScheduler.finish(small);
+
+        // Once the space is free the large request is served before the later one.
+        mScheduler.finish(running);
+        assertSame(large, mScheduler.take());
+        assertSame(later, mScheduler.take());
+        assertEquals(0, mScheduler.size());
+    }
+
+    @Test(timeout = 10000)
+    public void finishedDownloadFreesTheBytesItDidNotWrite() throws InterruptedException {
+        DownloadRequest first = start("first");
+        DownloadRequest second = start("second");
+        assertTrue(mScheduler.reserve(first, mUsable / 4));
+        assertTrue(mScheduler.reserve(second, mUsable / 4));
+        DownloadRequest large = start("large");
+        assertFalse(mScheduler.reserve(large, mUsable * 2 / 3));
+        mScheduler.finish(large);
+
+        // Stopped without writing, its whole reservation is free again.
+        mScheduler.finish(first);
+
+        assertSame(large, mScheduler.take());
+    }
+
+    @Test
+    public void aloneOnTheVolumeAlwaysFits() throws InterruptedException {
+        DownloadRequest request = start("request");
+
+        // The dispatcher fails it right away instead of it waiting forever.
+        assertTrue(mScheduler.reserve(request, Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    public void allocatedFileReleasesItsReservation() throws InterruptedException {
+        DownloadRequest running = start("running");
+        assertTrue(mScheduler.reserve(running, mUsable / 2));
+
+        mScheduler.onAllocated(running);
+
+        assertTrue(mScheduler.reserve(start("large"), mUsable * 3 / 4));
+    }
+
+    @Test
+    public void cancelledRequestStopsWaitingForSpace() throws InterruptedException {
+        DownloadRequest running = start("running");
+        assertTrue(mScheduler.reserve(running, mUsable / 2));
+        DownloadRequest large = start("large");
+        assertFalse(mScheduler.reserve(large, mUsable));
+        mScheduler.finish(large);
+
+        assertEquals(Collections.singletonList(large), mScheduler.removeAll(Collections.singletonList(large)));
+
+        assertEquals(0, mScheduler.size());
+    }
+
+    @Test
+    public void disablingLetsWaitingRequestsRun() throws InterruptedException {
+        DownloadRequest running = start("running");
+        assertTrue(mScheduler.reserve(running, mUsable / 2));
+        DownloadRequest large = start("large");
+        assertFalse(mScheduler.reserve(large, mUsable));
+        mScheduler.finish(large);
+
+        mScheduler.setSpaceReservationEnabled(false);
+
+        assertSame(large, mScheduler.take());
+    }
+
+    @Test
+    public void directoriesOfOneVolumeResolveToIt() throws Exception {
+        VolumeResolver resolver = new VolumeResolver();
+        File nested = mFolder.newFolder("a", "b");
+
+        assertEquals(resolver.getVolume(mFolder.getRoot()), resolver.getVolume(nested));
+        // A destination that doesn't exist yet is looked up through its nearest existing parent.
+        DownloadRequest request = newRequest("missing/dir/file");
+        assertEquals(mFolder.getRoot().getAbsoluteFile(), VolumeResolver.getDirectory(request));
+    }
+}
@@ -0,0 +1,48 @@
+package com.thin.downloadmanager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status listener recording how each download ended, keyed by its download context.
+ */
+class TestListener implements DownloadStatusListenerV1 {
+
+    /** Outcome of a download that completed. */
+    static final int COMPLETED = 0;
+
+    private final ConcurrentHashMap<Object, Integer> mOutcomes = new ConcurrentHashMap<>();
+    private final CountDownLatch mFinished;
+
+    TestListener(int downloads) {
+        mFinished = new CountDownLatch(downloads);
+    }
+
+    @Override
+    public void onDownloadComplete(DownloadRequest request) {
+        mOutcomes.put(request.getDownloadContext(), COMPLETED);
+        mFinished.countDown();
+    }
+
+    @Override
+    public void onDownloadFailed(DownloadRequest request, int errorCode, String errorMessage) {
+        mOutcomes.put(request.getDownloadContext(), errorCode);
+        mFinished.countDown();
+    }
+
+    @Override
+    public void onProgress(DownloadRequest request, long totalBytes, long downloadedBytes, int progress) {
+    }
+
+    boolean await() throws InterruptedException {
+        return mFinished.await(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns {@link #COMPLETED} or the error code of the download, null if it hasn't finished.
+     */
+    Integer getOutcome(Object context) {
+        return mOutcomes.get(context);
+    }
+}
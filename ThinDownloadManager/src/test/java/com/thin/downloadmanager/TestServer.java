@@ -0,0 +1,160 @@
+package com.thin.downloadmanager;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loopback HTTP server for the unit tests. It serves one resource with an ETag, answers range
+ * requests and If-Range like a real server and records the request headers it got.
+ */
+class TestServer {
+
+    private static final String PATH = "/file";
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final List<Headers> mRequests = new ArrayList<>();
+
+    private byte[] mData;
+    private String mETag;
+    /** Served by the requests after {@link #mReplaceAfter}, null if the resource never changes. */
+    private byte[] mNextData;
+    private String mNextETag;
+    private int mReplaceAfter;
+    /** Whether ranges are served without looking at If-Range. */
+    private boolean mIgnoreIfRange;
+    /** Bytes after which a response body breaks off, -1 to send them whole. */
+    private int mTruncateAfter = -1;
+    /** Number of responses still to break off, -1 for all of them. */
+    private int mTruncatedResponses = -1;
+
+    TestServer(byte[] data, String eTag) throws IOException {
+        mData = data;
+        mETag = eTag;
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + PATH;
+    }
+
+    void shutdown() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Serves another version of the resource once the given number of requests were answered.
+     */
+    synchronized void replaceAfter(int requests, byte[] data, String eTag) {
+        mReplaceAfter = requests;
+        mNextData = data;
+        mNextETag = eTag;
+    }
+
+    /**
+     * Makes the server answer ranges even when If-Range names another version.
+     */
+    synchronized void setIgnoreIfRange(boolean ignoreIfRange) {
+        mIgnoreIfRange = ignoreIfRange;
+    }
+
+    /**
+     * Makes every response break off after the given number of body bytes, -1 to undo it.
+     */
+    synchronized void setTruncateAfter(int bytes) {
+        mTruncateAfter = bytes;
+        mTruncatedResponses = -1;
+    }
+
+    /**
+     * Makes only the next given number of responses break off after the given number of body bytes.
+     */
+    synchronized void setTruncateAfter(int bytes, int responses) {
+        mTruncateAfter = bytes;
+        mTruncatedResponses = responses;
+    }
+
+    synchronized int getRequestCount() {
+        return mRequests.size();
+    }
+
+    /**
+     * Returns the values the requests had for a header, in the order they arrived.
+     */
+    synchronized List<String> getHeaders(String name) {
+        List<String> values = new ArrayList<>();
+        for (Headers headers : mRequests) {
+            String value = headers.getFirst(name);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        byte[] data;
+        String eTag;
+        boolean ignoreIfRange;
+        int truncateAfter;
+        synchronized (this) {
+            if (mNextData != null && mRequests.size() >= mReplaceAfter) {
+                mData = mNextData;
+                mETag = mNextETag;
+                mNextData = null;
+            }
+            mRequests.add(exchange.getRequestHeaders());
+            data = mData;
+            eTag = mETag;
+            ignoreIfRange = mIgnoreIfRange;
+            truncateAfter = mTruncatedResponses == 0 ? -1 : mTruncateAfter;
+            if (mTruncatedResponses > 0) {
+                mTruncatedResponses--;
+            }
+        }
+
+        long start = 0;
+        long end = data.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        boolean partial = range != null && (ifRange == null || ifRange.equals(eTag) || ignoreIfRange);
+        if (partial) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+        }
+        exchange.getResponseHeaders().set("ETag", eTag);
+        exchange.sendResponseHeaders(partial ? 206 : 200, end - start + 1);
+        OutputStream out = exchange.getResponseBody();
+        int length = (int) (end - start + 1);
+        out.write(data, (int) start, truncateAfter == -1 ? length : Math.min(length, truncateAfter));
+        out.flush();
+    }
+}
@@ -0,0 +1,114 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WritePipelineTest {
+
+    private static final String ETAG = "\"v1\"";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Many times the buffer size, so the ring wraps around.
+    private final byte[] mData = new byte[300000];
+    private TestServer mServer;
+    private ThinDownloadManager mDownloadManager;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(29).nextBytes(mData);
+        mServer = new TestServer(mData, ETAG);
+        mDownloadManager = new ThinDownloadManager(1)
+                .setWritePipelineDepth(4)
+                .setBufferSize(4096)
+                .setRetryBackoff(10, 10);
+        mDestination = new File(mFolder.getRoot(), "file");
+    }
+
+    @After
+    public void tearDown() {
+        mDownloadManager.release();
+        mServer.shutdown();
+    }
+
+    private Integer download(int maxRetries) throws InterruptedException {
+        TestListener listener = new TestListener(1);
+        mDownloadManager.add(new DownloadRequest(Uri.parse(mServer.getUrl()))
+                .setDestinationURI(Uri.parse(mDestination.getPath()))
+                .setRetryPolicy(new DefaultRetryPolicy(5000, maxRetries, 1f))
+                .setDownloadContext("file")
+                .setStatusListener(listener));
+        assertTrue(listener.await());
+        return listener.getOutcome("file");
+    }
+
+    @Test
+    public void pipelinedDownloadCompletes() throws Exception {
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download(0));
+
+        assertArrayEquals(mData, readFile());
+    }
+
+    @Test
+    public void pipelinedDownloadCompletesWithChannels() throws Exception {
+        mDownloadManager.setChannelTransferEnabled(true);
+
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download(0));
+
+        assertArrayEquals(mData, readFile());
+    }
+
+    @Test
+    public void brokenResponseResumesFromTheWrittenBytes() throws Exception {
+        mServer.setTruncateAfter(10000, 1);
+
+        assertEquals(Integer.valueOf(TestListener.COMPLETED), download(1));
+
+        // The writer drained the ring before the resume offset was taken.
+        assertEquals(Arrays.asList("bytes=0-", "bytes=10000-"), mServer.getHeaders("Range"));
+        assertArrayEquals(mData, readFile());
+    }
+
+    @Test
+    public void releaseStopsTheWriterPool() {
+        DownloadRequestQueue requestQueue = new DownloadRequestQueue(1);
+        requestQueue.start();
+
+        requestQueue.release();
+
+        assertTrue(requestQueue.getWriterExecutor().isShutdown());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ringOfOneBufferIsRejected() {
+        mDownloadManager.setWritePipelineDepth(1);
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile accessFile = new RandomAccessFile(mDestination, "r");
+        try {
+            byte[] data = new byte[(int) accessFile.length()];
+            accessFile.readFully(data);
+            return data;
+        } finally {
+            accessFile.close();
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package android.annotation;
+
+/**
+ * JVM stand-in for android.annotation.TargetApi.
+ */
+public @interface TargetApi {
+
+    int value();
+}
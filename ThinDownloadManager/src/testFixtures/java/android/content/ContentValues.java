@@ -0,0 +1,12 @@
+package android.content;
+
+/**
+ * JVM stand-in for android.content.ContentValues, only its TAG constant is used.
+ */
+public final class ContentValues {
+
+    public static final String TAG = "ContentValues";
+
+    private ContentValues() {
+    }
+}
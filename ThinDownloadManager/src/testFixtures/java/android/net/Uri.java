@@ -0,0 +1,48 @@
+package android.net;
+
+import java.net.URI;
+
+/**
+ * JVM stand-in for the parts of android.net.Uri the library uses.
+ */
+public final class Uri {
+
+    private final String mUriString;
+    private final URI mUri;
+
+    private Uri(String uriString) {
+        mUriString = uriString;
+        mUri = URI.create(uriString);
+    }
+
+    public static Uri parse(String uriString) {
+        return new Uri(uriString);
+    }
+
+    public String getScheme() {
+        return mUri.getScheme();
+    }
+
+    public String getHost() {
+        return mUri.getHost();
+    }
+
+    public String getPath() {
+        return mUri.getPath();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Uri && mUriString.equals(((Uri) o).mUriString);
+    }
+
+    @Override
+    public int hashCode() {
+        return mUriString.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mUriString;
+    }
+}
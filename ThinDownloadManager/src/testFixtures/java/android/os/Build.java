@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * JVM stand-in for android.os.Build. Reports no Android release, so version dependent code takes
+ * its plain Java fallback.
+ */
+public class Build {
+
+    public static class VERSION {
+
+        public static final int SDK_INT = 0;
+    }
+
+    public static class VERSION_CODES {
+
+        public static final int LOLLIPOP = 21;
+    }
+}
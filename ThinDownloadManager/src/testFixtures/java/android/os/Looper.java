@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * JVM stand-in for android.os.Looper. There is no main thread, see {@link Handler}.
+ */
+public final class Looper {
+
+    private static final Looper sMainLooper = new Looper();
+
+    private Looper() {
+    }
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+}
@@ -0,0 +1,14 @@
+package android.system;
+
+/**
+ * JVM stand-in for android.system.ErrnoException.
+ */
+public final class ErrnoException extends Exception {
+
+    public final int errno;
+
+    public ErrnoException(String functionName, int errno) {
+        super(functionName + " failed: errno " + errno);
+        this.errno = errno;
+    }
+}
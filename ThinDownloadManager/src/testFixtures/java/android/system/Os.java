@@ -0,0 +1,17 @@
+package android.system;
+
+import java.io.FileDescriptor;
+
+/**
+ * JVM stand-in for android.system.Os, never called since {@link android.os.Build.VERSION#SDK_INT}
+ * reports no Android release.
+ */
+public final class Os {
+
+    private Os() {
+    }
+
+    public static void posix_fallocate(FileDescriptor fd, long offset, long length) throws ErrnoException {
+        throw new ErrnoException("posix_fallocate", OsConstants.EOPNOTSUPP);
+    }
+}
@@ -0,0 +1,13 @@
+package android.system;
+
+/**
+ * JVM stand-in for android.system.OsConstants with the Linux values of the constants used.
+ */
+public final class OsConstants {
+
+    public static final int ENOSPC = 28;
+    public static final int EOPNOTSUPP = 95;
+
+    private OsConstants() {
+    }
+}
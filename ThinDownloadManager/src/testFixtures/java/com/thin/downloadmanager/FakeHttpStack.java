@@ -0,0 +1,185 @@
+package com.thin.downloadmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory {@link HttpStack} serving registered byte arrays without any socket, for tests and
+ * benchmarks. Supports Range, If-Range against the ETag and redirects; unknown urls get a 404.
+ * Not part of the library, the unit tests compile it next to it.
+ */
+public class FakeHttpStack implements HttpStack {
+
+    private final ConcurrentHashMap<String, Resource> mResources = new ConcurrentHashMap<>();
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    private volatile boolean mRangesSupported = true;
+
+    /**
+     * Serves the body at the given url.
+     */
+    public FakeHttpStack addResource(String url, byte[] body) {
+        return addResource(url, body, null);
+    }
+
+    /**
+     * Serves the body at the given url with an ETag, used to validate If-Range.
+     */
+    public FakeHttpStack addResource(String url, byte[] body, String eTag) {
+        mResources.put(url, new Resource(HttpURLConnection.HTTP_OK, body, eTag, null));
+        return this;
+    }
+
+    /**
+     * Answers the url with a 302 to the location.
+     */
+    public FakeHttpStack addRedirect(String url, String location) {
+        mResources.put(url, new Resource(HttpURLConnection.HTTP_MOVED_TEMP, new byte[0], null, location));
+        return this;
+    }
+
+    /**
+     * Answers the url with the given status code and an empty body.
+     */
+    public FakeHttpStack addError(String url, int statusCode) {
+        mResources.put(url, new Resource(statusCode, new byte[0], null, null));
+        return this;
+    }
+
+    public FakeHttpStack removeResource(String url) {
+        mResources.remove(url);
+        return this;
+    }
+
+    /**
+     * When disabled Range headers are ignored and the whole body is always sent with a 200.
+     */
+    public FakeHttpStack setRangesSupported(boolean supported) {
+        mRangesSupported = supported;
+        return this;
+    }
+
+    /**
+     * Number of requests performed so far.
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    @Override
+    public Response performRequest(URL url, Map<String, String> headers, int timeoutMs) throws IOException {
+        mRequestCount.incrementAndGet();
+        Resource resource = mResources.get(url.toString());
+        if (resource == null) {
+            return new FakeResponse(HttpURLConnection.HTTP_NOT_FOUND, "Not Found", new byte[0], 0, 0);
+        }
+        if (resource.mStatusCode != HttpURLConnection.HTTP_OK) {
+            FakeResponse response = new FakeResponse(resource.mStatusCode, "Fake " + resource.mStatusCode, resource.mBody, 0, 0);
+            if (resource.mLocation != null) {
+                response.mHeaders.put("Location", resource.mLocation);
+            }
+            return response;
+        }
+
+        TreeMap<String, String> requestHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        requestHeaders.putAll(headers);
+        byte[] body = resource.mBody;
+        String range = requestHeaders.get("Range");
+        String ifRange = requestHeaders.get("If-Range");
+        boolean partial = mRangesSupported && range != null && range.startsWith("bytes=")
+                && (ifRange == null || ifRange.equals(resource.mETag));
+
+        FakeResponse response;
+        if (partial) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            long start = Long.parseLong(bounds[0].trim());
+            long end = bounds[1].trim().isEmpty() ? body.length - 1 : Math.min(Long.parseLong(bounds[1].trim()), body.length - 1);
+            if (start >= body.length) {
+                response = new FakeResponse(416, "Requested Range Not Satisfiable", body, 0, 0);
+                response.mHeaders.put("Content-Range", "bytes */" + body.length);
+                return response;
+            }
+            int length = (int) (end - start + 1);
+            response = new FakeResponse(HttpURLConnection.HTTP_PARTIAL, "Partial Content", body, (int) start, length);
+            response.mHeaders.put("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+        } else {
+            response = new FakeResponse(HttpURLConnection.HTTP_OK, "OK", body, 0, body.length);
+        }
+        if (mRangesSupported) {
+            response.mHeaders.put("Accept-Ranges", "bytes");
+        }
+        if (resource.mETag != null) {
+            response.mHeaders.put("ETag", resource.mETag);
+        }
+        return response;
+    }
+
+    private static class Resource {
+
+        final int mStatusCode;
+        final byte[] mBody;
+        final String mETag;
+        final String mLocation;
+
+        Resource(int statusCode, byte[] body, String eTag, String location) {
+            mStatusCode = statusCode;
+            mBody = body;
+            mETag = eTag;
+            mLocation = location;
+        }
+    }
+
+    private static class FakeResponse implements Response {
+
+        private final int mStatusCode;
+        private final String mMessage;
+        private final byte[] mBody;
+        private final int mOffset;
+        private final int mLength;
+        final TreeMap<String, String> mHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        FakeResponse(int statusCode, String message, byte[] body, int offset, int length) {
+            mStatusCode = statusCode;
+            mMessage = message;
+            mBody = body;
+            mOffset = offset;
+            mLength = length;
+            mHeaders.put("Content-Length", String.valueOf(length));
+        }
+
+        @Override
+        public int getResponseCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public String getResponseMessage() {
+            return mMessage;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mHeaders.get(name);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (mStatusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new IOException("HTTP " + mStatusCode);
+            }
+            return new ByteArrayInputStream(mBody, mOffset, mLength);
+        }
+
+        @Override
+        public void disconnect() {
+        }
+    }
+}
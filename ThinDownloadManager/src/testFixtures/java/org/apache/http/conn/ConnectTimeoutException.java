@@ -0,0 +1,16 @@
+package org.apache.http.conn;
+
+import java.io.InterruptedIOException;
+
+/**
+ * JVM stand-in for the exception of the legacy Apache HTTP client bundled with Android.
+ */
+public class ConnectTimeoutException extends InterruptedIOException {
+
+    public ConnectTimeoutException() {
+    }
+
+    public ConnectTimeoutException(String message) {
+        super(message);
+    }
+}
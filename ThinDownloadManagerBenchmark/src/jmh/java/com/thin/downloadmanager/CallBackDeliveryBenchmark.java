@@ -0,0 +1,79 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+import android.os.Handler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per event cost of {@link DownloadRequestQueue.CallBackDelivery}: progress coalescing, follower
+ * and group bookkeeping and the listener calls. The JVM {@link Handler} runs callbacks inline, so
+ * the handoff to the main thread itself is not part of the numbers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CallBackDeliveryBenchmark {
+
+    private static final long TOTAL_BYTES = 1L << 30;
+
+    private DownloadRequestQueue mQueue;
+    private DownloadRequestQueue.CallBackDelivery mDelivery;
+    private DownloadRequest mRequest;
+    private long mDownloadedBytes;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        mQueue = new DownloadRequestQueue(new Handler());
+        mDelivery = mQueue.new CallBackDelivery(new Handler());
+        mRequest = new DownloadRequest(Uri.parse("http://bench.local/file"))
+                .setStatusListener(new DownloadStatusListenerV1() {
+                    @Override
+                    public void onDownloadComplete(DownloadRequest downloadRequest) {
+                        blackhole.consume(downloadRequest);
+                    }
+
+                    @Override
+                    public void onDownloadFailed(DownloadRequest downloadRequest, int errorCode, String errorMessage) {
+                        blackhole.consume(errorCode);
+                    }
+
+                    @Override
+                    public void onProgress(DownloadRequest downloadRequest, long totalBytes, long downloadedBytes, int progress) {
+                        blackhole.consume(downloadedBytes);
+                    }
+                });
+        mRequest.setDownloadId(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mQueue.release();
+    }
+
+    @Benchmark
+    public void progress() {
+        mDownloadedBytes = (mDownloadedBytes + 4096) % TOTAL_BYTES;
+        mDelivery.postProgressUpdate(mRequest, TOTAL_BYTES, mDownloadedBytes, (int) (mDownloadedBytes * 100 / TOTAL_BYTES));
+    }
+
+    @Benchmark
+    public void complete() {
+        mDelivery.postDownloadComplete(mRequest);
+    }
+
+    @Benchmark
+    public void failed() {
+        mDelivery.postDownloadFailed(mRequest, DownloadManager.ERROR_HTTP_DATA_ERROR, "Benchmark");
+    }
+}
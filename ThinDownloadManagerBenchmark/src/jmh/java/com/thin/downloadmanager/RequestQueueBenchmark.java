@@ -0,0 +1,70 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of add, query and cancel on {@link DownloadRequestQueue} while several threads hit the same
+ * queue and its dispatchers drain it. Downloads go to an in-memory {@link FakeHttpStack} and a
+ * discarding stream, so only the queue bookkeeping is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class RequestQueueBenchmark {
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private ThinDownloadManager mDownloadManager;
+    private Uri mUri;
+
+    @Setup
+    public void setUp() {
+        mUri = Uri.parse("http://bench.local/small");
+        mDownloadManager = new ThinDownloadManager(4)
+                .setHttpStack(new FakeHttpStack().addResource(mUri.toString(), new byte[128]));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDownloadManager.release();
+    }
+
+    @Benchmark
+    public int add() {
+        return mDownloadManager.add(newRequest());
+    }
+
+    @Benchmark
+    public void addQueryCancel(Blackhole blackhole) {
+        int downloadId = mDownloadManager.add(newRequest());
+        blackhole.consume(mDownloadManager.query(downloadId));
+        blackhole.consume(mDownloadManager.cancel(downloadId));
+    }
+
+    private DownloadRequest newRequest() {
+        return new DownloadRequest(mUri).setDestinationStream(DISCARD);
+    }
+}
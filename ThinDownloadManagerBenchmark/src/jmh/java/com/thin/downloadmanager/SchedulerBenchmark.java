@@ -0,0 +1,76 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of ordering waiting requests: filling and draining a {@link PriorityBlockingQueue} sorted by
+ * {@link DownloadRequest#compareTo(DownloadRequest)}, the queue the dispatchers used to take from,
+ * against the {@link DownloadScheduler} that replaced it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SchedulerBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int requestCount;
+
+    @Param({"8"})
+    public int hostCount;
+
+    private DownloadRequest[] mRequests;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        DownloadRequest.Priority[] priorities = DownloadRequest.Priority.values();
+        mRequests = new DownloadRequest[requestCount];
+        for (int i = 0; i < requestCount; i++) {
+            Uri uri = Uri.parse("http://host" + random.nextInt(hostCount) + ".local/file" + i);
+            DownloadRequest request = new DownloadRequest(uri)
+                    .setPriority(priorities[random.nextInt(priorities.length)]);
+            request.setDownloadId(i + 1);
+            request.setMetrics(new DownloadMetrics(i + 1, uri.toString()));
+            mRequests[i] = request;
+        }
+    }
+
+    @Benchmark
+    public void priorityBlockingQueue(Blackhole blackhole) {
+        PriorityBlockingQueue<DownloadRequest> queue = new PriorityBlockingQueue<>();
+        for (DownloadRequest request : mRequests) {
+            queue.add(request);
+        }
+        DownloadRequest request;
+        while ((request = queue.poll()) != null) {
+            blackhole.consume(request);
+        }
+    }
+
+    @Benchmark
+    public void downloadScheduler(Blackhole blackhole) throws InterruptedException {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        for (DownloadRequest request : mRequests) {
+            scheduler.add(request);
+        }
+        for (int i = 0; i < mRequests.length; i++) {
+            DownloadRequest request = scheduler.take();
+            blackhole.consume(request);
+            scheduler.finish(request);
+        }
+    }
+}
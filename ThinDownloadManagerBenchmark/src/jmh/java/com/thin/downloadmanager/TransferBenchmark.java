@@ -0,0 +1,104 @@
+package com.thin.downloadmanager;
+
+import android.net.Uri;
+
+import com.thin.downloadmanager.benchmark.LoopbackServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to download one file from a loopback server through {@link DownloadDispatcher}, per buffer
+ * size, copy loop and write pipeline depth. The file size divided by the time is the throughput of transferData.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransferBenchmark {
+
+    @Param({"4096", "16384", "65536", "262144"})
+    public int bufferSize;
+
+    @Param({"false", "true"})
+    public boolean channelTransfer;
+
+    @Param({"0", "4"})
+    public int writePipelineDepth;
+
+    @Param({"16777216"})
+    public long fileSize;
+
+    private LoopbackServer mServer;
+    private ThinDownloadManager mDownloadManager;
+    private Uri mUri;
+    private Uri mDestination;
+
+    @Setup
+    public void setUp() throws IOException {
+        mServer = new LoopbackServer(2).start();
+        mDownloadManager = new ThinDownloadManager(1)
+                .setBufferSize(bufferSize)
+                .setChannelTransferEnabled(channelTransfer)
+                .setWritePipelineDepth(writePipelineDepth);
+        mUri = Uri.parse(mServer.url(fileSize));
+        File destination = File.createTempFile("transfer", ".bin");
+        destination.deleteOnExit();
+        mDestination = Uri.parse(destination.toURI().toString());
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDownloadManager.release();
+        mServer.stop();
+        new File(mDestination.getPath()).delete();
+    }
+
+    @Benchmark
+    public void download() throws InterruptedException {
+        Result result = new Result();
+        mDownloadManager.add(new DownloadRequest(mUri)
+                .setDestinationURI(mDestination)
+                .setStatusListener(result));
+        result.await();
+    }
+
+    static class Result implements DownloadStatusListenerV1 {
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile String mError;
+
+        @Override
+        public void onDownloadComplete(DownloadRequest downloadRequest) {
+            mDone.countDown();
+        }
+
+        @Override
+        public void onDownloadFailed(DownloadRequest downloadRequest, int errorCode, String errorMessage) {
+            mError = errorCode + " " + errorMessage;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onProgress(DownloadRequest downloadRequest, long totalBytes, long downloadedBytes, int progress) {
+        }
+
+        void await() throws InterruptedException {
+            mDone.await();
+            if (mError != null) {
+                throw new IllegalStateException("Download failed: " + mError);
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.thin.downloadmanager.benchmark;
+
+import android.net.Uri;
+
+import com.thin.downloadmanager.DefaultRetryPolicy;
+import com.thin.downloadmanager.DownloadMetrics;
+import com.thin.downloadmanager.DownloadMetricsListener;
+import com.thin.downloadmanager.DownloadRequest;
+import com.thin.downloadmanager.DownloadStatusListenerV1;
+import com.thin.downloadmanager.ThinDownloadManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load and soak test of {@link ThinDownloadManager} against a {@link LoopbackServer}. Fires a batch
+ * of downloads mixing plain, segmented, chunked, redirected, unavailable, slow and truncated
+ * responses, and reports throughput, latency percentiles, failures by error code and the heap high
+ * water mark. With a duration the batches are repeated until the time is up. Exits with status 1 if
+ * any download ended differently than its scenario expects.
+ * <p>
+ * Options, all optional: --downloads=N, --concurrency=N, --size=BYTES, --duration=SECONDS,
+ * --timeout=SECONDS, --seed=N, --write-pipeline=BUFFERS
+ */
+public class LoadTest {
+
+    /**
+     * Kinds of response in a batch, with their share of the downloads and the expected outcome.
+     */
+    enum Scenario {
+        PLAIN(40, null, 0),
+        SEGMENTED(10, null, 0),
+        CHUNKED(10, "chunked=true", 0),
+        REDIRECT(10, "redirect=2", 0),
+        UNAVAILABLE(5, "status=503", HttpURLConnection.HTTP_UNAVAILABLE),
+        SLOW(5, null, 0),
+        TRUNCATED(20, null, 0);
+
+        final int mWeight;
+        final String mQuery;
+        final int mExpectedError;
+
+        Scenario(int weight, String query, int expectedError) {
+            mWeight = weight;
+            mQuery = query;
+            mExpectedError = expectedError;
+        }
+    }
+
+    private final int mDownloads;
+    private final int mConcurrency;
+    private final long mSize;
+    private final long mDurationMs;
+    private final long mTimeoutMs;
+    private final Random mRandom;
+    private final int mWritePipelineDepth;
+
+    private final AtomicInteger mCompleted = new AtomicInteger();
+    private final AtomicInteger mUnexpected = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final Map<Integer, AtomicInteger> mFailures = new TreeMap<>();
+    private final ConcurrentLinkedQueue<DownloadMetrics> mMetrics = new ConcurrentLinkedQueue<>();
+    private volatile long mHeapHighWaterMark;
+
+    LoadTest(Map<String, String> options) {
+        mDownloads = getInt(options, "downloads", 1000);
+        mConcurrency = getInt(options, "concurrency", 64);
+        mSize = getInt(options, "size", 256 * 1024);
+        mDurationMs = TimeUnit.SECONDS.toMillis(getInt(options, "duration", 0));
+        mTimeoutMs = TimeUnit.SECONDS.toMillis(getInt(options, "timeout", 600));
+        mRandom = new Random(getInt(options, "seed", 1));
+        mWritePipelineDepth = getInt(options, "write-pipeline", 0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        boolean passed = new LoadTest(options).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Runs the batches and prints the report.
+     *
+     * @return true if every download ended as its scenario expects
+     */
+    boolean run() throws IOException, InterruptedException {
+        LoopbackServer server = new LoopbackServer(Math.max(16, mConcurrency)).start();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ThinDownloadManager downloadManager = new ThinDownloadManager(executor, mConcurrency);
+        downloadManager.setRetryBackoff(100, 1000);
+        downloadManager.setWritePipelineDepth(mWritePipelineDepth);
+        downloadManager.setMetricsListener(new DownloadMetricsListener() {
+            @Override
+            public void onDownloadMetrics(DownloadMetrics metrics) {
+                mMetrics.add(metrics);
+            }
+        });
+        File directory = Files.createTempDirectory("loadtest").toFile();
+        Thread sampler = startHeapSampler();
+
+        long started = System.nanoTime();
+        int rounds = 0;
+        int timedOut = 0;
+        do {
+            long roundStarted = System.nanoTime();
+            timedOut += runBatch(downloadManager, server, directory, rounds);
+            rounds++;
+            System.out.println(String.format(Locale.US, "round %d: %d downloads in %d ms",
+                    rounds, mDownloads, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - roundStarted)));
+        } while (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < mDurationMs);
+        long elapsedNanos = System.nanoTime() - started;
+
+        sampler.interrupt();
+        downloadManager.release();
+        executor.shutdownNow();
+        server.stop();
+        directory.delete();
+
+        report(rounds, elapsedNanos, timedOut);
+        return mUnexpected.get() == 0 && timedOut == 0;
+    }
+
+    /**
+     * @return the number of downloads not finished within the timeout
+     */
+    private int runBatch(ThinDownloadManager downloadManager, LoopbackServer server, File directory, int round)
+            throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(mDownloads);
+        for (int i = 0; i < mDownloads; i++) {
+            Scenario scenario = pickScenario();
+            File destination = new File(directory, round + "-" + i + ".bin");
+            DownloadRequest request = new DownloadRequest(Uri.parse(getUrl(server, scenario)))
+                    .setDestinationURI(Uri.parse(destination.toURI().toString()))
+                    .setRetryPolicy(new DefaultRetryPolicy(5000, 2, 1f))
+                    .setStatusListener(new Outcome(scenario, destination, done));
+            if (scenario == Scenario.SEGMENTED) {
+                request.setSegmentCount(4).setMinSegmentSize(Math.max(1, mSize / 8));
+            }
+            downloadManager.add(request);
+        }
+        if (!done.await(mTimeoutMs, TimeUnit.MILLISECONDS)) {
+            downloadManager.cancelAll();
+            return (int) done.getCount();
+        }
+        return 0;
+    }
+
+    private Scenario pickScenario() {
+        int total = 0;
+        for (Scenario scenario : Scenario.values()) {
+            total += scenario.mWeight;
+        }
+        int pick = mRandom.nextInt(total);
+        for (Scenario scenario : Scenario.values()) {
+            pick -= scenario.mWeight;
+            if (pick < 0) {
+                return scenario;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    private String getUrl(LoopbackServer server, Scenario scenario) {
+        switch (scenario) {
+            case SLOW:
+                // About half a second per download.
+                return server.url(mSize, "bytesPerSecond=" + Math.max(1, mSize * 2));
+            case TRUNCATED:
+                return server.url(mSize, "truncate=" + mSize / 2);
+            default:
+                return scenario.mQuery == null ? server.url(mSize) : server.url(mSize, scenario.mQuery);
+        }
+    }
+
+    private Thread startHeapSampler() {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Thread sampler = new Thread("LoadTest-HeapSampler") {
+            @Override
+            public void run() {
+                try {
+                    while (!isInterrupted()) {
+                        mHeapHighWaterMark = Math.max(mHeapHighWaterMark, memory.getHeapMemoryUsage().getUsed());
+                        Thread.sleep(50);
+                    }
+                } catch (InterruptedException e) {
+                    // Done.
+                }
+            }
+        };
+        sampler.setDaemon(true);
+        sampler.start();
+        return sampler;
+    }
+
+    private void report(int rounds, long elapsedNanos, int timedOut) {
+        List<DownloadMetrics> metrics = new ArrayList<>(mMetrics);
+        long[] totalMs = new long[metrics.size()];
+        List<Long> firstByteMs = new ArrayList<>();
+        int retries = 0;
+        int redirects = 0;
+        for (int i = 0; i < metrics.size(); i++) {
+            DownloadMetrics m = metrics.get(i);
+            totalMs[i] = m.getTotalMs();
+            if (m.getTimeToFirstByteMs() >= 0) {
+                firstByteMs.add(m.getTimeToFirstByteMs());
+            }
+            retries += m.getRetryCount();
+            redirects += m.getRedirectCount();
+        }
+        long[] ttfb = new long[firstByteMs.size()];
+        for (int i = 0; i < ttfb.length; i++) {
+            ttfb[i] = firstByteMs.get(i);
+        }
+        double seconds = elapsedNanos / 1e9;
+
+        System.out.println();
+        System.out.println(String.format(Locale.US, "downloads:   %d in %d round(s), %d concurrent, %d bytes each",
+                rounds * mDownloads, rounds, mConcurrency, mSize));
+        System.out.println(String.format(Locale.US, "completed:   %d, failed: %d, timed out: %d, unexpected: %d",
+                mCompleted.get(), getFailureCount(), timedOut, mUnexpected.get()));
+        System.out.println(String.format(Locale.US, "throughput:  %.1f MB/s, %.1f downloads/s",
+                mBytes.get() / seconds / (1024 * 1024), mCompleted.get() / seconds));
+        System.out.println("latency ms:  " + percentiles(totalMs));
+        System.out.println("ttfb ms:     " + percentiles(ttfb));
+        System.out.println("retries:     " + retries + ", redirects: " + redirects);
+        synchronized (mFailures) {
+            for (Map.Entry<Integer, AtomicInteger> failure : mFailures.entrySet()) {
+                System.out.println("error " + failure.getKey() + ":  " + failure.getValue().get());
+            }
+        }
+        System.out.println(String.format(Locale.US, "heap peak:   %.1f MB, threads peak: %d",
+                mHeapHighWaterMark / (1024.0 * 1024), ManagementFactory.getThreadMXBean().getPeakThreadCount()));
+    }
+
+    private int getFailureCount() {
+        int failures = 0;
+        synchronized (mFailures) {
+            for (AtomicInteger count : mFailures.values()) {
+                failures += count.get();
+            }
+        }
+        return failures;
+    }
+
+    private static String percentiles(long[] values) {
+        if (values.length == 0) {
+            return "n/a";
+        }
+        Arrays.sort(values);
+        return String.format(Locale.US, "p50 %d, p90 %d, p99 %d, max %d",
+                percentile(values, 0.5), percentile(values, 0.9), percentile(values, 0.99), values[values.length - 1]);
+    }
+
+    /**
+     * Nearest-rank percentile of sorted values.
+     */
+    static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    private static int getInt(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Checks the outcome of one download against its scenario and deletes the file.
+     */
+    private class Outcome implements DownloadStatusListenerV1 {
+
+        private final Scenario mScenario;
+        private final File mDestination;
+        private final CountDownLatch mDone;
+
+        Outcome(Scenario scenario, File destination, CountDownLatch done) {
+            mScenario = scenario;
+            mDestination = destination;
+            mDone = done;
+        }
+
+        @Override
+        public void onDownloadComplete(DownloadRequest downloadRequest) {
+            mCompleted.incrementAndGet();
+            long length = mDestination.length();
+            mBytes.addAndGet(length);
+            if (mScenario.mExpectedError != 0 || length != mSize) {
+                unexpected("completed with " + length + " bytes");
+            }
+            finish();
+        }
+
+        @Override
+        public void onDownloadFailed(DownloadRequest downloadRequest, int errorCode, String errorMessage) {
+            synchronized (mFailures) {
+                AtomicInteger count = mFailures.get(errorCode);
+                if (count == null) {
+                    count = new AtomicInteger();
+                    mFailures.put(errorCode, count);
+                }
+                count.incrementAndGet();
+            }
+            if (errorCode != mScenario.mExpectedError) {
+                unexpected("failed with " + errorCode + " " + errorMessage);
+            }
+            finish();
+        }
+
+        @Override
+        public void onProgress(DownloadRequest downloadRequest, long totalBytes, long downloadedBytes, int progress) {
+        }
+
+        private void unexpected(String outcome) {
+            mUnexpected.incrementAndGet();
+            System.out.println(mScenario + " download " + mDestination.getName() + " " + outcome);
+        }
+
+        private void finish() {
+            mDestination.delete();
+            mDone.countDown();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.thin.downloadmanager.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP server on the loopback interface serving generated content, so downloads can be measured
+ * without a real network. {@code /bytes/<n>} returns n bytes and honours single byte ranges. Query
+ * parameters make a response misbehave:
+ * <ul>
+ * <li>{@code chunked=true} - chunked encoding instead of a Content-Length</li>
+ * <li>{@code redirect=<k>} - k redirects before the content</li>
+ * <li>{@code status=<code>} - answer with that status and no body</li>
+ * <li>{@code bytesPerSecond=<r>} - send the body at about r bytes per second</li>
+ * <li>{@code truncate=<t>} - close the connection after t bytes, unless the range starts past the first byte</li>
+ * </ul>
+ */
+public class LoopbackServer {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Size of the writes of a slow response. */
+    private static final int SLOW_WRITE_SIZE = 8 * 1024;
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+
+    /** Content served for every path, repeated as often as needed. */
+    private final byte[] mPattern = new byte[CHUNK_SIZE];
+
+    public LoopbackServer(int threads) throws IOException {
+        for (int i = 0; i < mPattern.length; i++) {
+            mPattern[i] = (byte) (i * 31 + 7);
+        }
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        mExecutor = Executors.newFixedThreadPool(threads);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/bytes/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serveBytes(exchange);
+                } catch (IOException e) {
+                    // The client went away or the response was cut on purpose.
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public LoopbackServer start() {
+        mServer.start();
+        return this;
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the url serving the given number of bytes.
+     */
+    public String url(long size) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/bytes/" + size;
+    }
+
+    /**
+     * Returns the url serving the given number of bytes with the given query, e.g. "redirect=2".
+     */
+    public String url(long size, String query) {
+        return url(size) + "?" + query;
+    }
+
+    private void serveBytes(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> options = parseQuery(exchange.getRequestURI().getRawQuery());
+        long size = Long.parseLong(path.substring("/bytes/".length()));
+
+        int redirects = getInt(options, "redirect", 0);
+        if (redirects > 0) {
+            options.put("redirect", String.valueOf(redirects - 1));
+            exchange.getResponseHeaders().set("Location", url(size) + toQuery(options));
+            exchange.sendResponseHeaders(302, -1);
+            return;
+        }
+        int status = getInt(options, "status", 0);
+        if (status != 0) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+
+        long start = 0;
+        long end = size - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+            if (start >= size) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        exchange.getResponseHeaders().set("ETag", "\"" + size + "\"");
+        long length = end - start + 1;
+        boolean chunked = Boolean.parseBoolean(options.get("chunked"));
+        exchange.sendResponseHeaders(range != null ? 206 : 200, chunked ? 0 : (length == 0 ? -1 : length));
+
+        long truncate = getInt(options, "truncate", -1);
+        long bodyLength = start == 0 && truncate >= 0 ? Math.min(truncate, length) : length;
+        writeBody(exchange.getResponseBody(), start, bodyLength, getInt(options, "bytesPerSecond", 0));
+        if (bodyLength < length) {
+            // Closing the exchange short of the Content-Length drops the connection.
+            throw new IOException("Truncated response");
+        }
+    }
+
+    private void writeBody(OutputStream out, long offset, long length, int bytesPerSecond) throws IOException {
+        long started = System.nanoTime();
+        long written = 0;
+        while (written < length) {
+            int from = (int) ((offset + written) % CHUNK_SIZE);
+            int count = (int) Math.min(length - written, CHUNK_SIZE - from);
+            if (bytesPerSecond > 0) {
+                count = Math.min(count, SLOW_WRITE_SIZE);
+                long dueNanos = written * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+                long waitNanos = dueNanos - (System.nanoTime() - started);
+                if (waitNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted");
+                    }
+                }
+            }
+            out.write(mPattern, from, count);
+            written += count;
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> options = new HashMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int split = pair.indexOf('=');
+                if (split > 0) {
+                    options.put(pair.substring(0, split), pair.substring(split + 1));
+                }
+            }
+        }
+        return options;
+    }
+
+    private static String toQuery(Map<String, String> options) {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            query.append(query.length() == 0 ? '?' : '&').append(option.getKey()).append('=').append(option.getValue());
+        }
+        return query.toString();
+    }
+
+    private static int getInt(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
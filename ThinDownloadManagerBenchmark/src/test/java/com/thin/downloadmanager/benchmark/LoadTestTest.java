@@ -0,0 +1,33 @@
+package com.thin.downloadmanager.benchmark;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadTestTest {
+
+    @Test
+    public void percentileIsTheNearestRank() {
+        long[] sorted = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+        assertEquals(5, LoadTest.percentile(sorted, 0.5));
+        assertEquals(9, LoadTest.percentile(sorted, 0.9));
+        assertEquals(10, LoadTest.percentile(sorted, 0.99));
+        assertEquals(1, LoadTest.percentile(sorted, 0));
+    }
+
+    @Test
+    public void smallBatchEndsAsEveryScenarioExpects() throws Exception {
+        Map<String, String> options = new HashMap<>();
+        options.put("downloads", "60");
+        options.put("concurrency", "8");
+        options.put("size", "65536");
+        options.put("timeout", "60");
+
+        assertTrue(new LoadTest(options).run());
+    }
+}
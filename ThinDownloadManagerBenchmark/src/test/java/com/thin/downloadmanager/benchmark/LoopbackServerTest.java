@@ -0,0 +1,146 @@
+package com.thin.downloadmanager.benchmark;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LoopbackServerTest {
+
+    private LoopbackServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LoopbackServer(2).start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void servesTheRequestedNumberOfBytes() throws IOException {
+        HttpURLConnection connection = open(mServer.url(200000), null);
+
+        assertEquals(200, connection.getResponseCode());
+        byte[] body = read(connection);
+        assertEquals(200000, body.length);
+        // The same content repeats after every chunk, so ranges can be checked against it.
+        assertEquals(body[5], body[5 + 64 * 1024]);
+    }
+
+    @Test
+    public void servesByteRanges() throws IOException {
+        byte[] whole = read(open(mServer.url(200000), null));
+
+        HttpURLConnection connection = open(mServer.url(200000), "bytes=70000-70099");
+
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes 70000-70099/200000", connection.getHeaderField("Content-Range"));
+        byte[] expected = new byte[100];
+        System.arraycopy(whole, 70000, expected, 0, expected.length);
+        assertArrayEquals(expected, read(connection));
+    }
+
+    @Test
+    public void rangePastTheEndIsNotSatisfiable() throws IOException {
+        HttpURLConnection connection = open(mServer.url(1000), "bytes=1000-");
+
+        assertEquals(416, connection.getResponseCode());
+        assertEquals("bytes */1000", connection.getHeaderField("Content-Range"));
+        connection.disconnect();
+    }
+
+    @Test
+    public void chunkedResponseHasNoContentLength() throws IOException {
+        HttpURLConnection connection = open(mServer.url(100000, "chunked=true"), null);
+
+        assertEquals("chunked", connection.getHeaderField("Transfer-Encoding"));
+        assertNull(connection.getHeaderField("Content-Length"));
+        assertEquals(100000, read(connection).length);
+    }
+
+    @Test
+    public void redirectsCountDownToTheContent() throws IOException {
+        HttpURLConnection connection = open(mServer.url(1000, "redirect=2"), null);
+        connection.setInstanceFollowRedirects(false);
+
+        assertEquals(302, connection.getResponseCode());
+        String location = connection.getHeaderField("Location");
+        assertEquals(mServer.url(1000, "redirect=1"), location);
+        connection.disconnect();
+
+        // Followed to the end, the content comes after the last redirect.
+        assertEquals(1000, read(open(mServer.url(1000, "redirect=2"), null)).length);
+    }
+
+    @Test
+    public void statusOptionAnswersWithoutBody() throws IOException {
+        HttpURLConnection connection = open(mServer.url(1000, "status=503"), null);
+
+        assertEquals(503, connection.getResponseCode());
+        connection.disconnect();
+    }
+
+    @Test
+    public void truncatedResponseBreaksOff() throws IOException {
+        HttpURLConnection connection = open(mServer.url(200000, "truncate=1000"), null);
+
+        assertEquals("200000", connection.getHeaderField("Content-Length"));
+        // The connection is closed short of the announced length.
+        assertEquals(1000, read(connection).length);
+    }
+
+    @Test
+    public void resumedRangeOfTruncatedResponseIsWhole() throws IOException {
+        HttpURLConnection connection = open(mServer.url(200000, "truncate=1000"), "bytes=1000-");
+
+        assertEquals(206, connection.getResponseCode());
+        assertEquals(199000, read(connection).length);
+    }
+
+    @Test
+    public void slowResponseKeepsToItsRate() throws IOException {
+        long started = System.nanoTime();
+
+        assertEquals(50000, read(open(mServer.url(50000, "bytesPerSecond=100000"), null)).length);
+
+        // The last write is due after about half a second.
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 400);
+    }
+
+    private static HttpURLConnection open(String url, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        return connection;
+    }
+
+    private static byte[] read(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}